@@ -0,0 +1,69 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.annotation.Resource;
+
+/**
+ * 店铺和博客id的布隆过滤器，启动时从数据库加载全部id，并定时重建
+ * 新增店铺和博客时由业务代码调用 CacheClient.addToBloomFilter 加入过滤器，其他节点通过通知和定时同步加入
+ */
+@Slf4j
+@Configuration
+public class BloomFilterConfig {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IBlogService blogService;
+
+    /**
+     * 误判率
+     */
+    @Value("${bloom-filter.fpp:0.01}")
+    private Double fpp;
+
+    private static final long MIN_CAPACITY = 10000L;
+
+    private IdBloomFilter shopBloomFilter;
+    private IdBloomFilter blogBloomFilter;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        shopBloomFilter = new IdBloomFilter(MIN_CAPACITY, fpp);
+        blogBloomFilter = new IdBloomFilter(MIN_CAPACITY, fpp);
+        // 先注册再加载，加载期间新增的id也能记录下来；加载完成之前过滤器不会拦截任何查询
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopBloomFilter);
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_BLOG_KEY, blogBloomFilter);
+        rebuild();
+    }
+
+    /**
+     * 定时重建，按当前的数据量重新计算位数组大小，同时清除已经删除的id
+     */
+    @Scheduled(cron = "${bloom-filter.rebuild-cron:0 0 4 * * ?}")
+    public void rebuild() {
+        if (shopBloomFilter == null) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        shopBloomFilter.rebuild(() -> shopService.listObjs(new QueryWrapper<Shop>().select("id"), id -> Long.valueOf(id.toString())));
+        blogBloomFilter.rebuild(() -> blogService.listObjs(new QueryWrapper<Blog>().select("id"), id -> Long.valueOf(id.toString())));
+        log.info("布隆过滤器重建完成，耗时：{}ms", System.currentTimeMillis() - begin);
+    }
+}
@@ -2,6 +2,10 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.AnalyticsClient;
+import com.hmdp.utils.SignedTokenClient;
+import com.hmdp.utils.TokenClient;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -14,11 +18,19 @@ public class MvcConfig extends WebMvcConfigurationSupport {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private TokenClient tokenClient;
+    @Resource
+    private SignedTokenClient signedTokenClient;
+    @Resource
+    private AnalyticsClient analyticsClient;
 
     @Override
     protected void addInterceptors(InterceptorRegistry registry) {
         // 刷新token拦截器 优先级为0（最高）
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(tokenClient, signedTokenClient, userService, analyticsClient)).order(0);
         // 登录状态拦截器 优先级为1
         registry.addInterceptor(new LoginInterceptor(stringRedisTemplate)).excludePathPatterns(
                 "/shop/**",
@@ -26,6 +38,7 @@ public class MvcConfig extends WebMvcConfigurationSupport {
                 "/shop-type/**",
                 "/upload/**",
                 "/blog/hot",
+                "/blog/trending",
                 "/user/code",
                 "/user/login"
         ).order(1);
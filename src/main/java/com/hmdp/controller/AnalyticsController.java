@@ -0,0 +1,71 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.AnalyticsClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+
+/**
+ * <p>
+ * UV统计报表，日期格式yyyyMMdd，不传begin时统计今天，不传end时只统计begin一天
+ * </p>
+ */
+@RestController
+@RequestMapping("/analytics")
+public class AnalyticsController {
+
+    @Resource
+    private AnalyticsClient analyticsClient;
+
+    /**
+     * 店铺UV
+     */
+    @GetMapping("/shop/{id}")
+    public Result shopUv(@PathVariable("id") Long id,
+                         @RequestParam(value = "begin", required = false) String begin,
+                         @RequestParam(value = "end", required = false) String end) {
+        return count(AnalyticsClient.shopScope(id), begin, end);
+    }
+
+    /**
+     * 博客UV
+     */
+    @GetMapping("/blog/{id}")
+    public Result blogUv(@PathVariable("id") Long id,
+                         @RequestParam(value = "begin", required = false) String begin,
+                         @RequestParam(value = "end", required = false) String end) {
+        return count(AnalyticsClient.blogScope(id), begin, end);
+    }
+
+    /**
+     * 日活，多天时是这段时间内活跃的用户数
+     */
+    @GetMapping("/dau")
+    public Result dau(@RequestParam(value = "begin", required = false) String begin,
+                      @RequestParam(value = "end", required = false) String end) {
+        return count(AnalyticsClient.SCOPE_DAU, begin, end);
+    }
+
+    /**
+     * 签到人数
+     */
+    @GetMapping("/sign")
+    public Result sign(@RequestParam(value = "begin", required = false) String begin,
+                       @RequestParam(value = "end", required = false) String end) {
+        return count(AnalyticsClient.SCOPE_SIGN, begin, end);
+    }
+
+    private Result count(String scope, String begin, String end) {
+        LocalDate[] range = AnalyticsClient.parseRange(begin, end);
+        if (range == null) {
+            return Result.fail("日期范围不合法");
+        }
+        return Result.ok(analyticsClient.count(scope, range[0], range[1]));
+    }
+}
@@ -1,9 +1,12 @@
 package com.hmdp.controller;
 
 
-import org.springframework.web.bind.annotation.RequestMapping;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.service.IBlogCommentsService;
+import org.springframework.web.bind.annotation.*;
 
-import org.springframework.web.bind.annotation.RestController;
+import javax.annotation.Resource;
 
 /**
  * <p>
@@ -17,4 +20,34 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/blog-comments")
 public class BlogCommentsController {
 
+    @Resource
+    private IBlogCommentsService blogCommentsService;
+
+    @PostMapping
+    public Result saveComment(@RequestBody BlogComments comment) {
+        return blogCommentsService.saveComment(comment);
+    }
+
+    /**
+     * 查询博客的一级评论，lastId为上一页最后一条评论的id，第一页不传
+     */
+    @GetMapping("/of/blog")
+    public Result queryBlogComments(@RequestParam("blogId") Long blogId,
+                                    @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogCommentsService.queryBlogComments(blogId, lastId);
+    }
+
+    /**
+     * 展开一级评论的回复，lastId为上一页最后一条回复的id，第一页不传
+     */
+    @GetMapping("/replies")
+    public Result queryReplies(@RequestParam("parentId") Long parentId,
+                               @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogCommentsService.queryReplies(parentId, lastId);
+    }
+
+    @PutMapping("/like/{id}")
+    public Result likeComment(@PathVariable("id") Long id) {
+        return blogCommentsService.likeComment(id);
+    }
 }
@@ -8,11 +8,13 @@ import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.AnalyticsClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import java.util.List;
 
 /**
@@ -29,10 +31,17 @@ public class BlogController {
 
     @Resource
     private IBlogService blogService;
+    @Resource
+    private AnalyticsClient analyticsClient;
 
     @GetMapping("/{id}")
-    public Result queryBlogById(@PathVariable("id") Long id) {
-        return blogService.queryBlogById(id);
+    public Result queryBlogById(@PathVariable("id") Long id, HttpServletRequest request) {
+        Result result = blogService.queryBlogById(id);
+        // 记录博客UV
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            analyticsClient.record(AnalyticsClient.blogScope(id), AnalyticsClient.visitor(request));
+        }
+        return result;
     }
 
     @PostMapping
@@ -80,6 +89,11 @@ public class BlogController {
         return blogService.queryHotBlog(current);
     }
 
+    @GetMapping("/trending")
+    public Result queryTrendingBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+        return blogService.queryTrendingBlog(current);
+    }
+
     @GetMapping("/likes/{id}")
     public Result likes(@PathVariable("id") Long id) {
         return blogService.likes(id);
@@ -6,10 +6,14 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.AnalyticsClient;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * <p>
@@ -26,14 +30,25 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private AnalyticsClient analyticsClient;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public Result queryShopById(@PathVariable("id") Long id, HttpServletRequest request) {
+        Result result = shopService.queryById(id);
+        // 记录店铺UV
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            analyticsClient.record(AnalyticsClient.shopScope(id), AnalyticsClient.visitor(request));
+        }
+        return result;
     }
 
     /**
@@ -45,6 +60,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_SHOP_KEY, shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -98,4 +115,13 @@ public class ShopController {
         // 返回数据
         return Result.ok(page.getRecords());
     }
+
+    /**
+     * 查询本地缓存和Redis缓存的命中率
+     * @return 各级缓存的命中统计
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
 }
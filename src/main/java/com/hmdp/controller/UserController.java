@@ -5,6 +5,7 @@ import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.UserInfo;
+import com.hmdp.service.ISignService;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.UserHolder;
@@ -33,6 +34,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private ISignService signService;
+
     /**
      * 发送手机验证码
      */
@@ -57,9 +61,8 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader("authorization") String token){
+        return userService.logout(token);
     }
 
     @GetMapping("/me")
@@ -85,11 +88,20 @@ public class UserController {
 
     @PostMapping("/sign")
     public Result sign() {
-        return userService.sign();
+        return signService.sign();
     }
 
     @GetMapping("/sign/count")
     public Result signCount() {
-        return userService.signCount();
+        return signService.signCount();
+    }
+
+    /**
+     * 查询一个月的签到日历和签到天数
+     * @param month yyyyMM，不传时查询本月
+     */
+    @GetMapping("/sign/calendar")
+    public Result signCalendar(@RequestParam(value = "month", required = false) String month) {
+        return signService.signCalendar(month);
     }
 }
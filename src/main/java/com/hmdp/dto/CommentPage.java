@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.BlogComments;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 评论的游标分页结果，下一页用lastId作为游标查询，lastId为null表示没有下一页
+ */
+@Data
+public class CommentPage {
+    private List<BlogComments> list;
+    private Long lastId;
+}
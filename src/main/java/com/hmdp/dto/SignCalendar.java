@@ -0,0 +1,24 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 一个月的签到日历
+ */
+@Data
+public class SignCalendar {
+    /**
+     * 月份，yyyyMM
+     */
+    private String month;
+    /**
+     * 本月签到天数
+     */
+    private Long total;
+    /**
+     * 签到的日期（几号），升序
+     */
+    private List<Integer> days;
+}
@@ -55,6 +55,11 @@ public class Blog implements Serializable {
      */
     @TableField(exist = false)
     private Boolean isLike;
+    /**
+     * 商户名称
+     */
+    @TableField(exist = false)
+    private String shopName;
 
     /**
      * 标题
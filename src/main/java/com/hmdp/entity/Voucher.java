@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存分段数，大于1时库存会被拆分到多个分段key中，用于热点秒杀券
+     */
+    @TableField(exist = false)
+    private Integer segments;
+
     /**
      * 生效时间
      */
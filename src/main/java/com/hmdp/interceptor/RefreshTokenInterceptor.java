@@ -1,23 +1,30 @@
 package com.hmdp.interceptor;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.AnalyticsClient;
+import com.hmdp.utils.SignedTokenClient;
+import com.hmdp.utils.TokenClient;
+import com.hmdp.utils.UserConverter;
 import com.hmdp.utils.UserHolder;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
-    private StringRedisTemplate stringRedisTemplate;
+    private TokenClient tokenClient;
+    private SignedTokenClient signedTokenClient;
+    private IUserService userService;
+    private AnalyticsClient analyticsClient;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate){
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(TokenClient tokenClient, SignedTokenClient signedTokenClient, IUserService userService,
+                                   AnalyticsClient analyticsClient){
+        this.tokenClient = tokenClient;
+        this.signedTokenClient = signedTokenClient;
+        this.userService = userService;
+        this.analyticsClient = analyticsClient;
     }
 
     @Override
@@ -30,34 +37,59 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
             //token为空，直接放行，交给后面的拦截器去处理
             return true;
         }
-        // 2.从Redis中获得用户信息
+        if(signedTokenClient.isEnabled()){
+            return preHandleSigned(token, response);
+        }
+        // 2.获得token对应的用户id，先查本地缓存，剩余有效期低于阈值时异步批量刷新有效期
         //User user = (User) session.getAttribute("user");
-        Map<Object, Object> userDtoMap = stringRedisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY + token);
+        Long userId = tokenClient.getUserId(token);
 
-        System.out.println(userDtoMap);
         // 3.判断用户是否存在
-        if(userDtoMap == null){
+        if(userId == null){
             // 4.不存在就放行，后面的拦截器会处理的
             return true;
         }
 
-        // 5.保存用户信息到ThreadLocal
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userDtoMap, new UserDTO(), true);
-//        userDTO.setId(user.getId());
-//        userDTO.setNickName(user.getNickName());
-//        userDTO.setIcon(user.getIcon());
-        System.out.println(userDTO.toString());
-        UserHolder.saveUser(userDTO);
+        // 5.从用户缓存中查询用户信息，修改昵称、头像后立即生效，保存副本到ThreadLocal
+        UserDTO cached = userService.queryUserDTO(userId);
+        if(cached == null){
+            return true;
+        }
+        UserHolder.saveUser(UserConverter.copy(cached));
 
-        // 6.刷新token有效期
-        stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY+token, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        // 6.放行
+        return true;
+    }
 
-        // 7.放行
+    /**
+     * 签名token：用户信息直接从token中读取，不访问Redis
+     * 剩余有效期低于阈值时用最新的用户信息签发新token，通过响应头authorization返回给前端替换
+     */
+    private boolean preHandleSigned(String token, HttpServletResponse response){
+        SignedTokenClient.Claims claims = signedTokenClient.parse(token);
+        if(claims == null){
+            return true;
+        }
+        UserDTO user = claims.getUser();
+        if(signedTokenClient.needRenew(claims)){
+            UserDTO latest = userService.queryUserDTO(user.getId());
+            if(latest == null){
+                return true;
+            }
+            user = UserConverter.copy(latest);
+            response.setHeader("authorization", signedTokenClient.renew(claims, user));
+        }
+        UserHolder.saveUser(user);
         return true;
     }
 
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
+        // 记录日活
+        UserDTO user = UserHolder.getUser();
+        if(user != null){
+            analyticsClient.recordActive(user.getId());
+        }
         UserHolder.removeUser();
     }
 }
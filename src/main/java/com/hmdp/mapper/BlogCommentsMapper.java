@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.BlogComments;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +18,15 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogCommentsMapper extends BaseMapper<BlogComments> {
 
+    /**
+     * 一条SQL查询一页一级评论的回复，每个一级评论最多limit条
+     * @param parentIds 一级评论id
+     */
+    List<BlogComments> selectReplies(@Param("parentIds") Collection<Long> parentIds, @Param("limit") int limit);
+
+    /**
+     * 批量更新点赞数，一条SQL更新一批评论
+     * @param likedMap 评论id -> 点赞数
+     */
+    int updateLikedBatch(@Param("likedMap") Map<Long, Long> likedMap);
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,15 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 批量更新点赞数，一条SQL更新一批博客
+     * @param likedMap 博客id -> 点赞数
+     */
+    int updateLikedBatch(@Param("likedMap") Map<Long, Long> likedMap);
+
+    /**
+     * 批量更新评论数
+     * @param commentsMap 博客id -> 评论数
+     */
+    int updateCommentsBatch(@Param("commentsMap") Map<Long, Long> commentsMap);
 }
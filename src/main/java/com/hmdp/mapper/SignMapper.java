@@ -0,0 +1,23 @@
+package com.hmdp.mapper;
+
+import com.hmdp.entity.Sign;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+public interface SignMapper extends BaseMapper<Sign> {
+
+    /**
+     * 批量写入签到记录，已经存在的（user_id, date）忽略，重复执行不会出错
+     */
+    int insertIgnoreBatch(@Param("signs") List<Sign> signs);
+}
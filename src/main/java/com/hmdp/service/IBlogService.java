@@ -20,9 +20,13 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryHotBlog(Integer current);
 
+    Result queryTrendingBlog(Integer current);
+
     Result likes(Long id);
 
     Result saveBlog(Blog blog);
 
     Result ofFollow(Long max, Integer offset);
+
+    void addCommentTrending(Long blogId);
 }
@@ -1,11 +1,42 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.CommentPage;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.BlogComments;
 import com.hmdp.mapper.BlogCommentsMapper;
+import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogCommentsService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +45,329 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogCommentsServiceImpl extends ServiceImpl<BlogCommentsMapper, BlogComments> implements IBlogCommentsService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private BlogMapper blogMapper;
+
+    /**
+     * 每个一级评论在列表中预览的回复条数
+     */
+    private static final int REPLY_PREVIEW_SIZE = 3;
+
+    /**
+     * 评论数达到这个值的博客，缓存评论的第一页
+     */
+    private static final long HOT_COMMENTS_THRESHOLD = 100;
+
+    /**
+     * 每次写回数据库的博客数量
+     */
+    private static final int COMMENTS_FLUSH_BATCH_SIZE = 500;
+
+    private static final DefaultRedisScript<Long> COMMENT_LIKE_SCRIPT;
+
+    static {
+        COMMENT_LIKE_SCRIPT = new DefaultRedisScript<>();
+        COMMENT_LIKE_SCRIPT.setLocation(new ClassPathResource("comment_like.lua"));
+        COMMENT_LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 发表评论或者回复
+     * 评论数只在Redis中累加，由定时任务批量写回数据库，热门博客被大量评论时不会频繁更新tb_blog的同一行，也不会频繁删除博客缓存
+     */
+    @Override
+    public Result saveComment(BlogComments comment) {
+        // 1.校验博客
+        Long blogId = comment.getBlogId();
+        if (blogId == null || StrUtil.isBlank(comment.getContent())) {
+            return Result.fail("评论内容不能为空");
+        }
+        Blog blog = cacheClient.queryWithPassThrough(RedisConstants.CACHE_BLOG_KEY, blogId, Blog.class,
+                blogService::getById, RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (blog == null) {
+            return Result.fail("博客不存在");
+        }
+
+        // 2.回复必须挂在同一个博客的一级评论下
+        Long parentId = comment.getParentId() == null ? 0L : comment.getParentId();
+        Long answerId = 0L;
+        if (parentId != 0) {
+            BlogComments parent = getById(parentId);
+            if (parent == null || !blogId.equals(parent.getBlogId()) || parent.getParentId() != 0) {
+                return Result.fail("评论不存在");
+            }
+            answerId = comment.getAnswerId() == null ? parentId : comment.getAnswerId();
+        }
+
+        // 3.保存评论
+        comment.setUserId(UserHolder.getUser().getId())
+                .setParentId(parentId)
+                .setAnswerId(answerId)
+                .setLiked(0)
+                .setStatus(false)
+                .setReplies(null);
+        if (!save(comment)) {
+            return Result.fail("评论失败");
+        }
+
+        // 4.评论数加一，第一次计数时用数据库中的评论数初始化，并标记需要写回数据库
+        String field = blogId.toString();
+        String initCount = String.valueOf(blog.getComments() == null ? 0 : blog.getComments());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.hSetNX(RedisConstants.BLOG_COMMENTS_COUNT_KEY, field, initCount);
+            stringRedisConnection.hIncrBy(RedisConstants.BLOG_COMMENTS_COUNT_KEY, field, 1);
+            stringRedisConnection.sAdd(RedisConstants.BLOG_COMMENTS_DIRTY_KEY, field);
+            return null;
+        });
+
+        // 5.增加博客的热度
+        blogService.addCommentTrending(blogId);
+        return Result.ok(comment.getId());
+    }
+
+    /**
+     * 按id倒序游标分页查询一级评论，同时带上每个一级评论的前几条回复
+     * 热门博客的第一页缓存几秒钟，大量并发请求只会有一个去查询数据库
+     */
+    @Override
+    public Result queryBlogComments(Long blogId, Long lastId) {
+        CommentPage page;
+        if (lastId == null && isHotBlog(blogId)) {
+            CommentPage cached = cacheClient.queryWithMutex(RedisConstants.CACHE_COMMENTS_KEY, blogId, CommentPage.class,
+                    id -> loadComments(id, null), RedisConstants.CACHE_COMMENTS_TTL, TimeUnit.SECONDS);
+            page = new CommentPage();
+            if (cached != null) {
+                // 缓存的对象是共享的，复制一份再设置用户信息
+                page.setList(copyComments(cached.getList()));
+                page.setLastId(cached.getLastId());
+            } else {
+                page.setList(Collections.emptyList());
+            }
+        } else {
+            page = loadComments(blogId, lastId);
+        }
+        fillComments(page.getList());
+        return Result.ok(page);
+    }
+
+    /**
+     * 按id正序游标分页查询一级评论的回复
+     */
+    @Override
+    public Result queryReplies(Long parentId, Long lastId) {
+        List<BlogComments> replies = query()
+                .eq("parent_id", parentId)
+                .gt(lastId != null, "id", lastId)
+                .orderByAsc("id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        fillComments(replies);
+        CommentPage page = new CommentPage();
+        page.setList(replies);
+        page.setLastId(nextCursor(replies));
+        return Result.ok(page);
+    }
+
+    /**
+     * 点赞、取消点赞评论，和博客点赞相同的方式：
+     * 点赞记录和点赞数只在Redis中用lua脚本原子修改，点赞数由定时任务批量写回数据库，热门评论不会频繁更新tb_blog_comments的同一行
+     */
+    @Override
+    public Result likeComment(Long id) {
+        // 1.校验评论，第一次计数时用评论的点赞数初始化
+        BlogComments comment = cacheClient.queryWithPassThrough(RedisConstants.CACHE_COMMENT_KEY, id, BlogComments.class,
+                this::getById, RedisConstants.CACHE_COMMENT_TTL, TimeUnit.MINUTES);
+        if (comment == null) {
+            return Result.fail("评论不存在");
+        }
+        // 2.原子切换点赞状态并修改点赞数
+        Long count = stringRedisTemplate.execute(COMMENT_LIKE_SCRIPT,
+                Arrays.asList(RedisConstants.COMMENT_LIKED_KEY + id, RedisConstants.COMMENT_LIKED_COUNT_KEY,
+                        RedisConstants.COMMENT_LIKED_DIRTY_KEY),
+                id.toString(), UserHolder.getUser().getId().toString(),
+                String.valueOf(comment.getLiked() == null ? 0 : comment.getLiked()));
+        // 3.返回最新的点赞数
+        return Result.ok(count);
+    }
+
+    /**
+     * 把Redis中有变化的评论点赞数批量写回数据库，和博客点赞数的写回方式相同
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void flushCommentLikedCount() {
+        while (true) {
+            List<String> commentIds = stringRedisTemplate.opsForSet().pop(RedisConstants.COMMENT_LIKED_DIRTY_KEY, COMMENTS_FLUSH_BATCH_SIZE);
+            if (commentIds == null || commentIds.isEmpty()) {
+                return;
+            }
+            try {
+                List<Object> counts = stringRedisTemplate.opsForHash().multiGet(RedisConstants.COMMENT_LIKED_COUNT_KEY, new ArrayList<>(commentIds));
+                Map<Long, Long> likedMap = new HashMap<>(commentIds.size());
+                for (int i = 0; i < commentIds.size(); i++) {
+                    Object count = counts.get(i);
+                    if (count != null) {
+                        likedMap.put(Long.valueOf(commentIds.get(i)), Math.max(0L, Long.parseLong(count.toString())));
+                    }
+                }
+                if (!likedMap.isEmpty()) {
+                    getBaseMapper().updateLikedBatch(likedMap);
+                    // 缓存中的点赞数已经过时，删除缓存
+                    cacheClient.deleteBatch(likedMap.keySet().stream()
+                            .map(commentId -> RedisConstants.CACHE_COMMENT_KEY + commentId)
+                            .collect(Collectors.toList()));
+                }
+            } catch (Exception e) {
+                // 写回失败，重新标记，等待下一次写回
+                log.error("评论点赞数写回数据库失败", e);
+                stringRedisTemplate.opsForSet().add(RedisConstants.COMMENT_LIKED_DIRTY_KEY, commentIds.toArray(new String[0]));
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把Redis中有变化的评论数批量写回数据库，和点赞数的写回方式相同
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void flushCommentsCount() {
+        while (true) {
+            List<String> blogIds = stringRedisTemplate.opsForSet().pop(RedisConstants.BLOG_COMMENTS_DIRTY_KEY, COMMENTS_FLUSH_BATCH_SIZE);
+            if (blogIds == null || blogIds.isEmpty()) {
+                return;
+            }
+            try {
+                List<Object> counts = stringRedisTemplate.opsForHash().multiGet(RedisConstants.BLOG_COMMENTS_COUNT_KEY, new ArrayList<>(blogIds));
+                Map<Long, Long> commentsMap = new HashMap<>(blogIds.size());
+                for (int i = 0; i < blogIds.size(); i++) {
+                    Object count = counts.get(i);
+                    if (count != null) {
+                        commentsMap.put(Long.valueOf(blogIds.get(i)), Long.parseLong(count.toString()));
+                    }
+                }
+                if (!commentsMap.isEmpty()) {
+                    // 不删除博客缓存，评论风暴时每次写回都删除缓存会让热门博客的详情请求都去查询数据库；
+                    // 查询博客时用Redis中的评论数覆盖缓存中的旧值
+                    blogMapper.updateCommentsBatch(commentsMap);
+                }
+            } catch (Exception e) {
+                // 写回失败，重新标记，等待下一次写回
+                log.error("评论数写回数据库失败", e);
+                stringRedisTemplate.opsForSet().add(RedisConstants.BLOG_COMMENTS_DIRTY_KEY, blogIds.toArray(new String[0]));
+                return;
+            }
+        }
+    }
+
+    private boolean isHotBlog(Long blogId) {
+        Object count = stringRedisTemplate.opsForHash().get(RedisConstants.BLOG_COMMENTS_COUNT_KEY, blogId.toString());
+        return count != null && Long.parseLong(count.toString()) >= HOT_COMMENTS_THRESHOLD;
+    }
+
+    /**
+     * 查询一页一级评论，走(blog_id, parent_id, id)索引；再用一条SQL查询这一页所有一级评论的前几条回复
+     */
+    private CommentPage loadComments(Long blogId, Long lastId) {
+        List<BlogComments> comments = query()
+                .eq("blog_id", blogId)
+                .eq("parent_id", 0)
+                .lt(lastId != null, "id", lastId)
+                .orderByDesc("id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        if (!comments.isEmpty()) {
+            List<Long> parentIds = comments.stream().map(BlogComments::getId).collect(Collectors.toList());
+            Map<Long, List<BlogComments>> replies = getBaseMapper().selectReplies(parentIds, REPLY_PREVIEW_SIZE).stream()
+                    .collect(Collectors.groupingBy(BlogComments::getParentId));
+            comments.forEach(comment -> comment.setReplies(replies.getOrDefault(comment.getId(), Collections.emptyList())));
+        }
+        CommentPage page = new CommentPage();
+        page.setList(comments);
+        page.setLastId(nextCursor(comments));
+        return page;
+    }
+
+    /**
+     * 不足一页说明没有下一页了
+     */
+    private Long nextCursor(List<BlogComments> comments) {
+        if (comments.size() < SystemConstants.MAX_PAGE_SIZE) {
+            return null;
+        }
+        return comments.get(comments.size() - 1).getId();
+    }
+
+    private List<BlogComments> copyComments(List<BlogComments> comments) {
+        if (comments == null) {
+            return Collections.emptyList();
+        }
+        List<BlogComments> copies = new ArrayList<>(comments.size());
+        for (BlogComments comment : comments) {
+            BlogComments copy = BeanUtil.copyProperties(comment, BlogComments.class);
+            copy.setReplies(comment.getReplies() == null ? null : copyComments(comment.getReplies()));
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * 批量给评论和回复赋值用户信息、点赞数和当前用户是否点赞
+     * 批量查询所有评论者的用户缓存，一次pipeline查询所有点赞数和点赞记录
+     */
+    private void fillComments(List<BlogComments> comments) {
+        List<BlogComments> all = new ArrayList<>(comments);
+        for (BlogComments comment : comments) {
+            if (comment.getReplies() != null) {
+                all.addAll(comment.getReplies());
+            }
+        }
+        if (all.isEmpty()) {
+            return;
+        }
+        // 1.评论者信息
+        Set<Long> userIds = all.stream().map(BlogComments::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds);
+        for (BlogComments comment : all) {
+            UserDTO author = users.get(comment.getUserId());
+            if (author != null) {
+                comment.setIcon(author.getIcon());
+                comment.setName(author.getNickName());
+            }
+        }
+        // 2.当前用户是否点赞，以及Redis中还没有写回数据库的点赞数，一次pipeline查询
+        UserDTO user = UserHolder.getUser();
+        String userId = user == null ? null : user.getId().toString();
+        String[] commentIds = all.stream().map(comment -> comment.getId().toString()).toArray(String[]::new);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.hMGet(RedisConstants.COMMENT_LIKED_COUNT_KEY, commentIds);
+            if (userId != null) {
+                for (String commentId : commentIds) {
+                    stringRedisConnection.sIsMember(RedisConstants.COMMENT_LIKED_KEY + commentId, userId);
+                }
+            }
+            return null;
+        });
+        List<?> counts = (List<?>) results.get(0);
+        for (int i = 0; i < all.size(); i++) {
+            BlogComments comment = all.get(i);
+            Object count = counts == null ? null : counts.get(i);
+            if (count != null) {
+                comment.setLiked(Math.max(0, Integer.parseInt(count.toString())));
+            }
+            comment.setIsLike(userId != null && Boolean.TRUE.equals(results.get(i + 1)));
+        }
+    }
 }
@@ -1,32 +1,58 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
+import com.hmdp.entity.Shop;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.EnrichExecutor;
+import com.hmdp.utils.FeedClient;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.ThreadPoolUtil;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.DefaultTypedTuple;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -38,6 +64,7 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -47,6 +74,98 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private FeedClient feedClient;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private EnrichExecutor enrichExecutor;
+
+    /**
+     * 点赞记录的存储方式：zset blog:liked:{id}保存所有点赞用户和点赞时间；
+     * bitmap 按用户id分段的位图判断是否点赞，只用有上限的zset保存最近点赞的用户
+     */
+    @Value("${layout.blog-liked:zset}")
+    private String likedLayout;
+
+    /**
+     * 每次写回数据库的博客数量
+     */
+    private static final int LIKED_FLUSH_BATCH_SIZE = 500;
+
+
+    /**
+     * 热门排行榜重建时保留的博客数量
+     */
+    private static final int HOT_BLOG_MAX_SIZE = 10000;
+
+    /**
+     * 重建热门排行榜的锁和锁的超时时间（秒）
+     */
+    private static final String HOT_BLOG_REBUILD_LOCK = "blog:hot:rebuild";
+    private static final Long HOT_BLOG_REBUILD_LOCK_TTL = 300L;
+
+    /**
+     * 初始化热度排行榜的锁和锁的超时时间（秒）
+     */
+    private static final String TRENDING_INIT_LOCK = "blog:trending:init";
+    private static final Long TRENDING_INIT_LOCK_TTL = 300L;
+
+    /**
+     * 热度分数的初始时间戳 2022-01-01 00:00:00，单位毫秒
+     */
+    private static final long TRENDING_BEGIN_TIMESTAMP = 1640995200000L;
+
+    /**
+     * 热度衰减的时间常数，单位毫秒，每过一个τ，旧的点赞、评论的权重衰减为原来的1/e
+     */
+    private static final long TRENDING_TAU = TimeUnit.HOURS.toMillis(12);
+
+    /**
+     * 发布、点赞、评论在热度中的权重
+     */
+    private static final double TRENDING_POST_WEIGHT = 1.0;
+    private static final double TRENDING_LIKE_WEIGHT = 1.0;
+    private static final double TRENDING_COMMENT_WEIGHT = 2.0;
+
+    /**
+     * 衰减后的热度低于这个值，就从热度排行榜中清理掉
+     */
+    private static final double TRENDING_MIN_WEIGHT = 0.01;
+
+    /**
+     * 热度排行榜最多保留的博客数量
+     */
+    private static final int TRENDING_MAX_SIZE = 10000;
+
+    /**
+     * 重建热度排行榜时只统计最近几天发布的博客，更早的博客热度已经衰减得可以忽略
+     */
+    private static final int TRENDING_REBUILD_DAYS = 7;
+
+    // 加载lua脚本
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    private static final DefaultRedisScript<Long> LIKE_BITMAP_SCRIPT;
+    private static final DefaultRedisScript<Long> TRENDING_SCRIPT;
+    private static final DefaultRedisScript<Long> HOT_REBUILD_SCRIPT;
+
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+        LIKE_BITMAP_SCRIPT = new DefaultRedisScript<>();
+        LIKE_BITMAP_SCRIPT.setLocation(new ClassPathResource("like_bitmap.lua"));
+        LIKE_BITMAP_SCRIPT.setResultType(Long.class);
+        TRENDING_SCRIPT = new DefaultRedisScript<>();
+        TRENDING_SCRIPT.setLocation(new ClassPathResource("trending.lua"));
+        TRENDING_SCRIPT.setResultType(Long.class);
+
+        HOT_REBUILD_SCRIPT = new DefaultRedisScript<>();
+        HOT_REBUILD_SCRIPT.setLocation(new ClassPathResource("hot_rebuild.lua"));
+        HOT_REBUILD_SCRIPT.setResultType(Long.class);
+    }
 
 
     /**
@@ -54,47 +173,103 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
-        // 根据id查询博库
-        Blog blog = getById(id);
-        if (blog == null) {
+        // 根据id查询博客，先查缓存，布隆过滤器判断不存在时不查询数据库
+        Blog cached = cacheClient.queryWithPassThrough(RedisConstants.CACHE_BLOG_KEY, id, Blog.class,
+                this::getById, RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (cached == null) {
             return Result.fail("博客不存在");
         }
-        // 设置当前用户信息
-        queryBlogUser(blog);
-        // 设置当前用户是否已经给这个博客点赞
-        isLikedBlog(blog);
+        // 缓存的对象是共享的，复制一份再设置用户信息
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
+        // 设置作者信息、当前用户是否已经给这个博客点赞、商户名称
+        fillBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
     /**
      * 实现点赞和取消点赞的功能
+     * 点赞记录和点赞数都只在Redis中用lua脚本原子修改，点赞数由定时任务批量写回数据库
+     * 同一个脚本里更新热度分数，取消点赞时减去的是当初点赞时加上的权重
+     * 先通过博客缓存（布隆过滤器 + 缓存空对象）确认博客存在，不存在的博客不会留下点赞记录、点赞数和排行榜成员；
+     * 第一次计数时用博客的点赞数初始化Redis中的点赞数
+     * zset布局下，点赞记录开始迁移到位图布局后同时修改位图，见RedisLayoutMigrator
      */
     @Override
     public Result likeBlog(Long id) {
-        // 1.先判断用户有没有点过赞
         Long userId = UserHolder.getUser().getId();
-        //Boolean isMember = stringRedisTemplate.opsForSet().isMember(RedisConstants.BLOG_LIKED_KEY + id, userId+"");
-        Double score = stringRedisTemplate.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + id, userId + "");
-        if (score == null) {
-            // 2.如果没有点过赞
-            // 2.1数据库添加一条点赞信息
-            boolean isSuccess = update().setSql("liked = liked+1").eq("id", id).update();
-            // 2.2在Redis中保存用户点赞记录
-            if (isSuccess) {
-                //stringRedisTemplate.opsForSet().add(RedisConstants.BLOG_LIKED_KEY + id,userId+"");
-                stringRedisTemplate.opsForZSet().add(RedisConstants.BLOG_LIKED_KEY + id, userId + "", System.currentTimeMillis());
+        Blog blog = cacheClient.queryWithPassThrough(RedisConstants.CACHE_BLOG_KEY, id, Blog.class,
+                this::getById, RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (blog == null) {
+            return Result.fail("博客不存在");
+        }
+        String initCount = String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked());
+        if (isBitmapLayout()) {
+            return likeBlogWithBitmap(id, userId, initCount);
+        }
+        Long count = stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(RedisConstants.BLOG_LIKED_KEY + id, RedisConstants.BLOG_LIKED_COUNT_KEY,
+                        RedisConstants.BLOG_LIKED_DIRTY_KEY, RedisConstants.BLOG_HOT_KEY, RedisConstants.BLOG_TRENDING_KEY,
+                        RedisConstants.blogLikedBitsKey(id, userId), RedisConstants.BLOG_LIKED_RECENT_KEY + id,
+                        RedisConstants.BLOG_LIKED_MIGRATED_KEY),
+                id.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()),
+                String.valueOf(TRENDING_BEGIN_TIMESTAMP), String.valueOf(TRENDING_TAU),
+                String.valueOf(Math.log(TRENDING_LIKE_WEIGHT)), initCount,
+                String.valueOf(RedisConstants.blogLikedBitOffset(userId)), String.valueOf(RedisConstants.BLOG_LIKED_RECENT_MAX_SIZE));
+        // 返回最新的点赞数
+        return Result.ok(count);
+    }
+
+    /**
+     * bitmap布局的点赞
+     */
+    private Result likeBlogWithBitmap(Long id, Long userId, String initCount) {
+        Long count = stringRedisTemplate.execute(LIKE_BITMAP_SCRIPT,
+                Arrays.asList(RedisConstants.blogLikedBitsKey(id, userId), RedisConstants.BLOG_LIKED_RECENT_KEY + id,
+                        RedisConstants.BLOG_LIKED_COUNT_KEY, RedisConstants.BLOG_LIKED_DIRTY_KEY,
+                        RedisConstants.BLOG_HOT_KEY, RedisConstants.BLOG_TRENDING_KEY),
+                id.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()),
+                String.valueOf(TRENDING_BEGIN_TIMESTAMP), String.valueOf(TRENDING_TAU),
+                String.valueOf(Math.log(TRENDING_LIKE_WEIGHT)),
+                String.valueOf(RedisConstants.blogLikedBitOffset(userId)), String.valueOf(RedisConstants.BLOG_LIKED_RECENT_MAX_SIZE),
+                initCount);
+        return Result.ok(count);
+    }
+
+    private boolean isBitmapLayout() {
+        return "bitmap".equals(likedLayout);
+    }
+
+    /**
+     * 把Redis中有变化的点赞数批量写回数据库
+     * SPOP保证多个节点不会重复写同一个博客；写入的是点赞数的最新值，重复写入也不会出错
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void flushLikedCount() {
+        while (true) {
+            List<String> blogIds = stringRedisTemplate.opsForSet().pop(RedisConstants.BLOG_LIKED_DIRTY_KEY, LIKED_FLUSH_BATCH_SIZE);
+            if (blogIds == null || blogIds.isEmpty()) {
+                return;
             }
-        } else {
-            // 3.如果已经点过赞
-            // 3.1在数据库中删除一条点赞信息
-            boolean isSuccess = update().setSql("liked = liked-1").eq("id", id).update();
-            // 3.2在Redis中删除用户点赞记录
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().remove(RedisConstants.BLOG_LIKED_KEY + id, userId + "");
+            try {
+                List<Object> counts = stringRedisTemplate.opsForHash().multiGet(RedisConstants.BLOG_LIKED_COUNT_KEY, new ArrayList<>(blogIds));
+                Map<Long, Long> likedMap = new HashMap<>(blogIds.size());
+                for (int i = 0; i < blogIds.size(); i++) {
+                    Object count = counts.get(i);
+                    if (count != null) {
+                        likedMap.put(Long.valueOf(blogIds.get(i)), Math.max(0L, Long.parseLong(count.toString())));
+                    }
+                }
+                if (!likedMap.isEmpty()) {
+                    // 不删除博客缓存，查询博客时用Redis中的点赞数覆盖缓存中的旧值
+                    getBaseMapper().updateLikedBatch(likedMap);
+                }
+            } catch (Exception e) {
+                // 写回失败，重新标记，等待下一次写回
+                log.error("点赞数写回数据库失败", e);
+                stringRedisTemplate.opsForSet().add(RedisConstants.BLOG_LIKED_DIRTY_KEY, blogIds.toArray(new String[0]));
+                return;
             }
         }
-
-        return Result.ok();
     }
 
     /**
@@ -102,42 +277,219 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isLikedBlog(blog);
-        });
+        return queryRankedBlogs(RedisConstants.BLOG_HOT_KEY, current);
+    }
+
+    /**
+     * 查询最近的热门blog，按随时间衰减的热度排序
+     */
+    @Override
+    public Result queryTrendingBlog(Integer current) {
+        return queryRankedBlogs(RedisConstants.BLOG_TRENDING_KEY, current);
+    }
+
+    /**
+     * 按排行榜的顺序分页查询blog
+     */
+    private Result queryRankedBlogs(String rankKey, Integer current) {
+        // 1.从排行榜中查询当前页的博客id
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<String> ids = stringRedisTemplate.opsForZSet()
+                .reverseRange(rankKey, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (ids == null || ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 2.批量查询博客
+        List<Blog> records = queryBlogsByIds(ids.stream().map(Long::valueOf).collect(Collectors.toList()));
+        // 3.批量查询用户和点赞信息
+        fillBlogs(records);
         return Result.ok(records);
     }
 
     /**
-     * 根据blog_id查询点赞列表
+     * 项目启动时热门排行榜不存在，就从数据库初始化
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initHotBlog() {
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))) {
+            rebuildHotBlog();
+        }
+    }
+
+    /**
+     * 从数据库重建热门排行榜，只保留点赞数最多的HOT_BLOG_MAX_SIZE个博客
+     * 先写入临时key，再RENAME替换，重建期间排行榜一直可用
+     * 所有节点同时触发定时任务，用分布式锁保证只有一个节点重建；临时key带上本节点的标识，锁过期也不会互相覆盖
+     */
+    @Scheduled(cron = "0 30 4 * * ?")
+    public void rebuildHotBlog() {
+        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, HOT_BLOG_REBUILD_LOCK);
+        if (!lock.tryLock(HOT_BLOG_REBUILD_LOCK_TTL)) {
+            // 其他节点正在重建
+            return;
+        }
+        String tmpKey = RedisConstants.BLOG_HOT_KEY + ":rebuild:" + UUID.randomUUID().toString(true);
+        try {
+            // 先把Redis中的点赞数写回数据库
+            flushLikedCount();
+            List<Blog> blogs = query().select("id", "liked")
+                    .orderByDesc("liked")
+                    .last("LIMIT " + HOT_BLOG_MAX_SIZE)
+                    .list();
+            if (blogs.isEmpty()) {
+                return;
+            }
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+            for (Blog blog : blogs) {
+                int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+                tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), (double) liked));
+                if (tuples.size() == 1000) {
+                    stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+                    tuples = new HashSet<>();
+                }
+            }
+            if (!tuples.isEmpty()) {
+                stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+            }
+            // 写回数据库之后的点赞数只在Redis中，用脚本修正分数后再原子替换
+            stringRedisTemplate.execute(HOT_REBUILD_SCRIPT,
+                    Arrays.asList(tmpKey, RedisConstants.BLOG_HOT_KEY, RedisConstants.BLOG_LIKED_COUNT_KEY));
+            log.info("热门博客排行榜重建完成，共{}个博客", blogs.size());
+        } finally {
+            // 重建失败时临时key还在，删除它
+            stringRedisTemplate.delete(tmpKey);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 热度分数 score = ln(Σ w * e^((t - T0) / τ))
+     * 每个点赞、评论的权重随发生时间指数增长，等价于所有旧的权重随时间指数衰减，
+     * 排序结果不随当前时间变化，所以每次点赞只需要在对数空间中累加一次，不需要定时重新计算所有博客的分数
+     */
+    private static double trendingLogWeight(double weight, long time) {
+        return Math.log(weight) + (double) (time - TRENDING_BEGIN_TIMESTAMP) / TRENDING_TAU;
+    }
+
+    /**
+     * 发表评论，增加博客的热度
+     */
+    @Override
+    public void addCommentTrending(Long blogId) {
+        addTrendingWeight(blogId, TRENDING_COMMENT_WEIGHT);
+    }
+
+    /**
+     * 给博客的热度加上一个权重
+     */
+    private void addTrendingWeight(Long blogId, double weight) {
+        stringRedisTemplate.execute(TRENDING_SCRIPT, Collections.singletonList(RedisConstants.BLOG_TRENDING_KEY),
+                blogId.toString(), String.valueOf(trendingLogWeight(weight, System.currentTimeMillis())), "1");
+    }
+
+    /**
+     * 定时清理热度排行榜：衰减后热度低于TRENDING_MIN_WEIGHT的博客，以及超过TRENDING_MAX_SIZE的部分
+     */
+    @Scheduled(cron = "0 0 * * * ?")
+    public void pruneTrendingBlog() {
+        // 当前时刻衰减后的热度 = e^(score - (now - T0) / τ)，低于最小值时 score < ln(min) + (now - T0) / τ
+        double minScore = trendingLogWeight(TRENDING_MIN_WEIGHT, System.currentTimeMillis());
+        Long removed = stringRedisTemplate.opsForZSet()
+                .removeRangeByScore(RedisConstants.BLOG_TRENDING_KEY, -Double.MAX_VALUE, minScore);
+        stringRedisTemplate.opsForZSet().removeRange(RedisConstants.BLOG_TRENDING_KEY, 0, -TRENDING_MAX_SIZE - 1);
+        log.debug("清理热度排行榜，移除{}个博客", removed);
+    }
+
+    /**
+     * 项目启动时热度排行榜不存在，就根据最近发布的博客和它们的点赞记录初始化
+     * 多个节点同时启动时用分布式锁保证只有一个节点初始化，临时key带上本节点的标识；
+     * 用RENAMENX替换，初始化期间其他节点已经开始写入排行榜（点赞、评论）时保留它们的数据，不用快照覆盖
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initTrendingBlog() {
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(RedisConstants.BLOG_TRENDING_KEY))) {
+            return;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, TRENDING_INIT_LOCK);
+        if (!lock.tryLock(TRENDING_INIT_LOCK_TTL)) {
+            // 其他节点正在初始化
+            return;
+        }
+        String tmpKey = RedisConstants.BLOG_TRENDING_KEY + ":rebuild:" + UUID.randomUUID().toString(true);
+        try {
+            // 拿到锁之后再检查一次，其他节点可能已经初始化完成
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(RedisConstants.BLOG_TRENDING_KEY))) {
+                return;
+            }
+            // 1.查询最近发布的博客
+            List<Blog> blogs = query().select("id", "create_time")
+                    .ge("create_time", LocalDateTime.now().minusDays(TRENDING_REBUILD_DAYS))
+                    .list();
+            if (blogs.isEmpty()) {
+                return;
+            }
+            // 2.批量查询点赞记录，score就是点赞时间；bitmap布局下只有最近点赞的用户有点赞时间
+            String likedKeyPrefix = isBitmapLayout() ? RedisConstants.BLOG_LIKED_RECENT_KEY : RedisConstants.BLOG_LIKED_KEY;
+            List<Object> likedList = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                for (Blog blog : blogs) {
+                    stringRedisConnection.zRangeWithScores(likedKeyPrefix + blog.getId(), 0, -1);
+                }
+                return null;
+            });
+            // 3.计算热度分数，写入临时key
+            Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+            for (int i = 0; i < blogs.size(); i++) {
+                Blog blog = blogs.get(i);
+                long createTime = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                double score = trendingLogWeight(TRENDING_POST_WEIGHT, createTime);
+                @SuppressWarnings("unchecked")
+                Set<ZSetOperations.TypedTuple<String>> likes = (Set<ZSetOperations.TypedTuple<String>>) likedList.get(i);
+                if (likes != null) {
+                    for (ZSetOperations.TypedTuple<String> like : likes) {
+                        // ln(e^a + e^b) = max + ln(1 + e^(min - max))
+                        double w = trendingLogWeight(TRENDING_LIKE_WEIGHT, like.getScore().longValue());
+                        score = Math.max(score, w) + Math.log1p(Math.exp(-Math.abs(score - w)));
+                    }
+                }
+                tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), score));
+                if (tuples.size() == 1000) {
+                    stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+                    tuples = new HashSet<>();
+                }
+            }
+            if (!tuples.isEmpty()) {
+                stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+            }
+            // 4.排行榜仍然不存在时才替换，检查和替换是一个原子命令
+            if (BooleanUtil.isTrue(stringRedisTemplate.renameIfAbsent(tmpKey, RedisConstants.BLOG_TRENDING_KEY))) {
+                log.info("热度排行榜初始化完成，共{}个博客", blogs.size());
+            } else {
+                log.info("热度排行榜已经在使用，放弃初始化结果");
+            }
+        } finally {
+            // 放弃或者失败时临时key还在，删除它
+            stringRedisTemplate.delete(tmpKey);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 根据blog_id查询最近点赞的5个用户，按点赞时间倒序
      */
     @Override
     public Result likes(Long id) {
-        // 得到top5的值
-        Set<String> range = stringRedisTemplate.opsForZSet().range(RedisConstants.BLOG_LIKED_KEY + id, 0, 4);
+        // 得到最近点赞的5个用户，两种布局含义相同：bitmap布局只保留了最近点赞的用户，无法查询最早点赞的用户
+        String key = isBitmapLayout() ? RedisConstants.BLOG_LIKED_RECENT_KEY + id : RedisConstants.BLOG_LIKED_KEY + id;
+        Set<String> range = stringRedisTemplate.opsForZSet().reverseRange(key, 0, 4);
         if (range == null || range.size() == 0) {
             return Result.ok();
         }
 
         List<Long> userIds = range.stream().map(Long::parseLong).collect(Collectors.toList());
 
-        String join = StrUtil.join(",", userIds);
-
-        // 根据用户id查询用户信息
-        List<UserDTO> userDtos = userService.query()
-                .in("id", userIds)
-                .last("order by field(id," + join + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 根据用户id批量查询用户缓存，按点赞时间倒序返回
+        List<UserDTO> userDtos = new ArrayList<>(userService.queryUserDTOs(userIds).values());
 
         return Result.ok(userDtos);
     }
@@ -152,22 +504,56 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("添加博客失败");
         }
+        // 加入布隆过滤器
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_BLOG_KEY, blog.getId());
+        // 加入热门排行榜
+        stringRedisTemplate.opsForZSet().add(RedisConstants.BLOG_HOT_KEY, blog.getId().toString(), 0);
+        // 加入热度排行榜，新发布的博客带有一个初始热度
+        addTrendingWeight(blog.getId(), TRENDING_POST_WEIGHT);
 
-        // 同时要把该博客发送给所有关注了该用户的收信箱中
-        // 先查出所有关注了该用户的用户
-        List<Follow> fansId = followService.query().eq("follow_user_id", UserHolder.getUser().getId()).list();
-        // 将博客id发送给这些用户的信箱
-        fansId.forEach((Follow follow) -> {
-            Long userId = follow.getUserId();
-            // 每一个用户对应一个feed流的key，也就是每一个用户都有一个收信箱
-            String key = RedisConstants.FEED_KEY + userId;
-            stringRedisTemplate.opsForZSet().add(key, blog.getId() + "", System.currentTimeMillis());
-        });
+        // 推送到粉丝的收件箱，大V只写入自己的发件箱，由粉丝读取时拉取
+        long timestamp = System.currentTimeMillis();
+        Long fansCount = followService.query().eq("follow_user_id", user.getId()).count().longValue();
+        if (feedClient.isBigAuthor(fansCount)) {
+            feedClient.pushToOutbox(user.getId(), blog.getId(), timestamp);
+        } else {
+            // 异步推送，不阻塞发布博客的请求
+            ThreadPoolUtil.getThreadPool().execute(() -> fanOut(user.getId(), blog.getId(), timestamp));
+        }
 
         // 返回id
         return Result.ok(blog.getId());
     }
 
+    /**
+     * 分批查询所有粉丝，每批用一个pipeline推送到收件箱
+     */
+    private void fanOut(Long authorId, Long blogId, long timestamp) {
+        long lastId = 0L;
+        int batchSize = feedClient.getFanOutBatchSize();
+        try {
+            while (true) {
+                List<Follow> follows = followService.query().select("id", "user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + batchSize)
+                        .list();
+                if (follows.isEmpty()) {
+                    return;
+                }
+                feedClient.pushToInboxes(blogId, timestamp,
+                        follows.stream().map(Follow::getUserId).collect(Collectors.toList()));
+                if (follows.size() < batchSize) {
+                    return;
+                }
+                lastId = follows.get(follows.size() - 1).getId();
+            }
+        } catch (Exception e) {
+            log.error("推送博客到粉丝收件箱失败，blogId：{}，lastFollowId：{}", blogId, lastId, e);
+        }
+    }
+
     /**
      * 查看已经关注了博主新发布的博客
      */
@@ -176,15 +562,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 1.得到当前用户
         Long userId = UserHolder.getUser().getId();
 
-        // 2.查询收件箱
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(RedisConstants.FEED_KEY + userId, 0, max, offset, 2);
+        // 2.收件箱长时间没有读取已经过期，从数据库重建
+        if (!feedClient.touchInbox(userId)) {
+            rebuildInbox(userId);
+        }
+
+        // 3.查询收件箱，合并关注的大V的发件箱，多查一页用于预取
+        int pageSize = feedClient.getPageSize();
+        List<ZSetOperations.TypedTuple<String>> tuples = feedClient.readFeed(
+                RedisConstants.FEED_KEY + userId, followedOutboxKeys(userId), max, offset, pageSize * 2);
 
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        if (tuples.isEmpty()) {
             return Result.ok();
         }
-        System.out.println(typedTuples.size());
+        List<ZSetOperations.TypedTuple<String>> typedTuples = tuples.subList(0, Math.min(pageSize, tuples.size()));
+        List<ZSetOperations.TypedTuple<String>> nextTuples = tuples.subList(typedTuples.size(), tuples.size());
 
-        // 3.解析数据 blogList,min(当前查询数据的最小id),offset(与这个最小id相同score的数据的个数)
+        // 4.解析数据 blogList,min(当前查询数据的最小id),offset(与这个最小id相同score的数据的个数)
         List<Long> idList = new ArrayList<>(typedTuples.size());
         long min = 0L;
         int resOffset = 1;
@@ -199,17 +593,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 resOffset = 1;
             }
         }
-
-        // 4.根据id查询blog
-        String ids = StrUtil.join(",", idList);
-        List<Blog> blogs = query().in("id", idList).last("ORDER BY FIELD(id," + ids + ")").list();
-        for (Blog blog : blogs) {
-            // 设置当前用户信息
-            queryBlogUser(blog);
-            // 设置当前用户是否一定给这个博客点赞
-            isLikedBlog(blog);
+        // 这一页的数据时间戳都和上一页的最小时间戳相同，还要加上上一页跳过的条数
+        if (min == max) {
+            resOffset += offset;
         }
-        // 5.返回
+
+        // 5.根据id查询blog，按收件箱的顺序排序
+        List<Blog> blogs = queryBlogsByIds(idList);
+        // 批量设置用户信息和当前用户是否点赞
+        fillBlogs(blogs);
+        // 6.异步预取下一页的博客
+        prefetchFeedBlogs(nextTuples.stream().map(tuple -> Long.valueOf(tuple.getValue())).collect(Collectors.toList()));
+        // 7.返回
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
         scrollResult.setMinTime(min);
@@ -218,22 +613,214 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     /**
-     * 给Blog赋值，User信息
+     * 从数据库重建收件箱：关注的普通博主最新发布的博客，大V的博客从发件箱读取，不放入收件箱
+     */
+    private void rebuildInbox(Long userId) {
+        Set<Long> bigAuthors = feedClient.bigAuthors();
+        List<Long> authorIds = followService.query().select("follow_user_id")
+                .eq("user_id", userId)
+                .list()
+                .stream()
+                .map(Follow::getFollowUserId)
+                .filter(authorId -> !bigAuthors.contains(authorId))
+                .collect(Collectors.toList());
+        Map<Long, Long> blogs = new HashMap<>();
+        if (!authorIds.isEmpty()) {
+            query().select("id", "create_time")
+                    .in("user_id", authorIds)
+                    .orderByDesc("create_time")
+                    .last("LIMIT " + feedClient.getInboxMaxSize())
+                    .list()
+                    .forEach(blog -> blogs.put(blog.getId(),
+                            blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        }
+        feedClient.rebuildInbox(userId, blogs);
+    }
+
+    /**
+     * 预取下一页的博客到缓存中，下一页只需要一次MGET
+     */
+    private void prefetchFeedBlogs(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ThreadPoolUtil.getThreadPool().execute(() -> {
+            try {
+                queryCachedBlogs(ids);
+            } catch (Exception e) {
+                log.warn("预取feed流博客失败", e);
+            }
+        });
+    }
+
+    /**
+     * 当前用户关注的大V的发件箱
      */
-    private void queryBlogUser(Blog blog) {
-        User user = userService.getById(blog.getUserId());
-        blog.setIcon(user.getIcon());
-        blog.setName(user.getNickName());
+    private List<String> followedOutboxKeys(Long userId) {
+        Set<Long> bigAuthors = feedClient.bigAuthors();
+        if (bigAuthors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return followService.query().select("follow_user_id")
+                .eq("user_id", userId)
+                .in("follow_user_id", bigAuthors)
+                .list()
+                .stream()
+                .map(follow -> RedisConstants.FEED_OUTBOX_KEY + follow.getFollowUserId())
+                .collect(Collectors.toList());
     }
 
     /**
-     * 当前用户是否一定给该blod点赞
-     *
-     * @param blog
+     * 根据id批量查询博客，按ids的顺序返回，不存在的博客会被忽略
+     * 缓存中的博客是共享的，返回的是副本，可以直接设置用户信息和点赞信息
      */
-    private void isLikedBlog(Blog blog) {
-        Double score = stringRedisTemplate.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + blog.getId(), UserHolder.getUser().getId() + "");
-        // 如果score不为null，就意味着已经有点在记录了
-        blog.setIsLike(score != null);
+    private List<Blog> queryBlogsByIds(List<Long> ids) {
+        Map<Long, Blog> cached = queryCachedBlogs(ids);
+        List<Blog> blogs = new ArrayList<>(cached.size());
+        cached.values().forEach(blog -> blogs.add(BeanUtil.copyProperties(blog, Blog.class)));
+        return blogs;
+    }
+
+    /**
+     * 批量查询博客缓存：本地缓存、一次MGET、一次IN查询数据库
+     */
+    private Map<Long, Blog> queryCachedBlogs(List<Long> ids) {
+        return cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 修改博客后删除缓存
+     */
+    @Override
+    public boolean updateById(Blog entity) {
+        boolean success = super.updateById(entity);
+        if (success) {
+            cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + entity.getId());
+        }
+        return success;
+    }
+
+    /**
+     * 删除博客后删除缓存
+     */
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        if (success) {
+            cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
+        }
+        return success;
+    }
+
+    /**
+     * 批量给Blog赋值用户信息、当前用户是否点赞、商户名称和最新的点赞数、评论数
+     * 四项查询互不依赖，在补全线程池中并发执行，每项都是一次批量查询；
+     * 超时或失败的一项降级为默认值（没有头像、未点赞、没有商户名、缓存中的计数），不影响其他项
+     */
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        long deadline = enrichExecutor.deadline();
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Set<Long> shopIds = blogs.stream().map(Blog::getShopId).filter(Objects::nonNull).collect(Collectors.toSet());
+        Future<Map<Long, UserDTO>> usersFuture = enrichExecutor.supply(() -> userService.queryUserDTOs(userIds));
+        Future<Set<Long>> likedFuture = enrichExecutor.supply(() -> queryLikedBlogIds(blogs));
+        Future<Map<Long, String>> shopNamesFuture = enrichExecutor.supply(() -> queryShopNames(shopIds));
+        Future<List<Object>> countsFuture = enrichExecutor.supply(() -> queryLiveCounts(blogs));
+
+        Map<Long, UserDTO> users = enrichExecutor.join(usersFuture, deadline, "作者", Collections.emptyMap());
+        Set<Long> likedIds = enrichExecutor.join(likedFuture, deadline, "点赞状态", Collections.emptySet());
+        Map<Long, String> shopNames = enrichExecutor.join(shopNamesFuture, deadline, "商户名称", Collections.emptyMap());
+        // 降级时使用博客缓存中的点赞数、评论数
+        List<Object> counts = enrichExecutor.join(countsFuture, deadline, "点赞数和评论数", Collections.emptyList());
+        List<?> likedCounts = counts.isEmpty() ? null : (List<?>) counts.get(0);
+        List<?> commentsCounts = counts.isEmpty() ? null : (List<?>) counts.get(1);
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setIcon(user.getIcon());
+                blog.setName(user.getNickName());
+            }
+            blog.setIsLike(likedIds.contains(blog.getId()));
+            blog.setShopName(shopNames.get(blog.getShopId()));
+            if (likedCounts != null && likedCounts.get(i) != null) {
+                blog.setLiked(Math.max(0, Integer.parseInt(likedCounts.get(i).toString())));
+            }
+            if (commentsCounts != null && commentsCounts.get(i) != null) {
+                blog.setComments(Math.max(0, Integer.parseInt(commentsCounts.get(i).toString())));
+            }
+        }
+    }
+
+    /**
+     * Redis中最新的点赞数和评论数，一个pipeline两次HMGET
+     * 点赞数、评论数写回数据库时不删除博客缓存（热门博客每次写回都删除缓存会让并发的详情请求都去查询数据库），
+     * 博客缓存中的计数可能是旧的，以Redis中的计数为准；Redis中没有计数的博客使用缓存中的值
+     */
+    private List<Object> queryLiveCounts(List<Blog> blogs) {
+        String[] blogIds = blogs.stream().map(blog -> blog.getId().toString()).toArray(String[]::new);
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.hMGet(RedisConstants.BLOG_LIKED_COUNT_KEY, blogIds);
+            stringRedisConnection.hMGet(RedisConstants.BLOG_COMMENTS_COUNT_KEY, blogIds);
+            return null;
+        });
+    }
+
+    /**
+     * 当前用户点赞过的博客id，一次pipeline查询所有博客
+     */
+    private Set<Long> queryLikedBlogIds(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            // 未登录，都没有点赞
+            return Collections.emptySet();
+        }
+        Long userId = user.getId();
+        boolean bitmap = isBitmapLayout();
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                if (bitmap) {
+                    stringRedisConnection.getBit(RedisConstants.blogLikedBitsKey(blog.getId(), userId),
+                            RedisConstants.blogLikedBitOffset(userId));
+                } else {
+                    stringRedisConnection.zScore(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId.toString());
+                }
+            }
+            return null;
+        });
+        Set<Long> likedIds = new HashSet<>();
+        for (int i = 0; i < blogs.size(); i++) {
+            // zset布局返回点赞时间，bitmap布局返回是否点赞
+            Object result = results.get(i);
+            if (bitmap ? Boolean.TRUE.equals(result) : result != null) {
+                likedIds.add(blogs.get(i).getId());
+            }
+        }
+        return likedIds;
+    }
+
+    /**
+     * 批量查询商户名称，和商户详情共用商户缓存
+     */
+    private Map<Long, String> queryShopNames(Set<Long> shopIds) {
+        if (shopIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Long, Shop> shops = cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_SHOP_KEY, shopIds, Shop.class,
+                missIds -> shopService.listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Map<Long, String> shopNames = new HashMap<>(shops.size());
+        shops.forEach((id, shop) -> {
+            if (shop.getName() != null) {
+                shopNames.put(id, shop.getName());
+            }
+        });
+        return shopNames;
     }
 }
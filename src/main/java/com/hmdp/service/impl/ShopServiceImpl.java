@@ -8,6 +8,7 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.ThreadPoolUtil;
@@ -34,6 +35,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private ThreadPoolUtil threadPoolUtil;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryById(Long id) {
@@ -82,56 +85,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     /**
      * 使用互斥锁解决缓存击穿
+     * 并发的未命中合并为一次加载，获取锁失败时等待重建完成的通知，而不是休眠后重试
      * @param id
      * @return
      */
     public Shop cacheWithMutex(Long id){
-        // 1.从redis中查询店铺信息
-        String shopStr = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        Shop shop = null;
-        // 2.缓存命中了？
-        if(shopStr != null && !shopStr.equals("")){
-            // 3.命中了直接返回
-            shop = JSONUtil.toBean(shopStr,Shop.class);
-            return shop;
-        }
-        // 补充：命中之后判断是不是空对象
-        if("".equals(shopStr)){
-            return null;
-        }
-
-        // 4.没有命中就去数据库中查询
-        // 4.1先尝试获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        try {
-            if (!tryLock(lockKey)) {
-                // 4.2获取锁失败，休眠一段时间后重试
-                Thread.sleep(5 * 1000);
-                cacheWithMutex(id);
-            }
-            // 4.3获取锁成功，去查询数据库
-            shop = getById(id);
-
-            // 5.数据库命中了？
-            if (shop == null) {
-                // 6.数据库中也没有，返回错误信息
-                // 补充：缓存空对象
-                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-
-            // 7.数据库中查到了就写入redis
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        }catch (Exception e){
-            e.printStackTrace();
-        }finally {
-            // 补充：记得释放锁
-            unlock(lockKey);
-        }
-
-
-        // 8.结束
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -182,8 +142,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1.更新数据库
         updateById(shop);
 
-        // 2.删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        // 2.删除缓存，同时通知所有节点删除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
 
         return Result.ok();
     }
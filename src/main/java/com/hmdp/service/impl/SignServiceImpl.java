@@ -0,0 +1,245 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SignCalendar;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.hmdp.utils.AnalyticsClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 服务实现类
+ * 签到记录保存在每个用户每月一个的位图 sign:yyyy:MM:{userId} 中，第几天签到就把第几位设为1；
+ * 每天签到的用户记录在 sign:dirty:{yyyyMMdd}，每天凌晨批量写入tb_sign
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+@Slf4j
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+    private static final DateTimeFormatter MONTH_KEY_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:");
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * 统计连续签到时每次pipeline查询的月数，大部分用户的连续签到不会超过这么多个月
+     */
+    private static final int STREAK_MONTHS_PER_BATCH = 3;
+
+    /**
+     * 统计连续签到时最多往前查询的月数
+     */
+    private static final int STREAK_MAX_MONTHS = 120;
+
+    /**
+     * 每次批量写入数据库的签到记录数
+     */
+    private static final int PERSIST_BATCH_SIZE = 500;
+
+    /**
+     * 写入数据库时检查最近几天的签到用户，前一天的任务失败时第二天补上
+     */
+    private static final int PERSIST_LOOKBACK_DAYS = 3;
+
+    /**
+     * 每天签到用户集合的有效期，超过PERSIST_LOOKBACK_DAYS，没有写入数据库之前不会过期
+     */
+    private static final long SIGN_DIRTY_TTL_DAYS = 7L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private AnalyticsClient analyticsClient;
+
+    /**
+     * 实现用户签到，同时记录今天签到的用户，等待写入数据库
+     */
+    @Override
+    public Result sign() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        String key = signKey(userId, YearMonth.from(today));
+        String dirtyKey = RedisConstants.USER_SIGN_DIRTY_KEY + today.format(DAY_FORMATTER);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.setBit(key, today.getDayOfMonth() - 1, true);
+            stringRedisConnection.sAdd(dirtyKey, userId.toString());
+            stringRedisConnection.expire(dirtyKey, TimeUnit.DAYS.toSeconds(SIGN_DIRTY_TTL_DAYS));
+            return null;
+        });
+        // 记录签到人数
+        analyticsClient.record(AnalyticsClient.SCOPE_SIGN, userId.toString());
+        return Result.ok();
+    }
+
+    /**
+     * 统计截至今天的连续签到天数，可以跨月
+     * 每个月的位图用BITFIELD读成一个整数，最后一天是最低位，末尾连续1的个数就是这个月末尾连续签到的天数；
+     * 一个月每天都签到了才继续查询上一个月，每次用一个pipeline查询STREAK_MONTHS_PER_BATCH个月
+     */
+    @Override
+    public Result signCount() {
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        YearMonth month = YearMonth.from(today);
+        int streak = 0;
+        for (int fetched = 0; fetched < STREAK_MAX_MONTHS; fetched += STREAK_MONTHS_PER_BATCH) {
+            List<YearMonth> months = new ArrayList<>(STREAK_MONTHS_PER_BATCH);
+            for (int i = 0; i < STREAK_MONTHS_PER_BATCH; i++) {
+                months.add(month.minusMonths(fetched + i));
+            }
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                for (YearMonth m : months) {
+                    stringRedisConnection.bitfield(signKey(userId, m), BitFieldSubCommands.create()
+                            .get(BitFieldSubCommands.BitFieldType.unsigned(signDays(m, today)))
+                            .valueAt(0));
+                }
+                return null;
+            });
+            for (int i = 0; i < months.size(); i++) {
+                int days = signDays(months.get(i), today);
+                int ones = trailingOnes(firstValue(results.get(i)));
+                streak += ones;
+                if (ones < days) {
+                    return Result.ok(streak);
+                }
+            }
+        }
+        return Result.ok(streak);
+    }
+
+    /**
+     * 查询一个月的签到日历，签到天数用BITCOUNT统计
+     * @param month yyyyMM，为空时查询本月
+     */
+    @Override
+    public Result signCalendar(String month) {
+        Long userId = UserHolder.getUser().getId();
+        YearMonth yearMonth;
+        try {
+            yearMonth = month == null || month.isEmpty() ? YearMonth.now() : YearMonth.parse(month, MONTH_FORMATTER);
+        } catch (DateTimeParseException e) {
+            return Result.fail("月份格式错误");
+        }
+        String key = signKey(userId, yearMonth);
+        int length = yearMonth.lengthOfMonth();
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.bitCount(key);
+            stringRedisConnection.bitfield(key, BitFieldSubCommands.create()
+                    .get(BitFieldSubCommands.BitFieldType.unsigned(length))
+                    .valueAt(0));
+            return null;
+        });
+        Long total = (Long) results.get(0);
+        long bits = firstValue(results.get(1));
+        List<Integer> days = new ArrayList<>(total == null ? 0 : total.intValue());
+        for (int day = 1; day <= length; day++) {
+            // 第1天是最高位
+            if ((bits >>> (length - day) & 1) == 1) {
+                days.add(day);
+            }
+        }
+        SignCalendar calendar = new SignCalendar();
+        calendar.setMonth(yearMonth.format(MONTH_FORMATTER));
+        calendar.setTotal(total == null ? 0L : total);
+        calendar.setDays(days);
+        return Result.ok(calendar);
+    }
+
+    /**
+     * 每天凌晨把前几天的签到记录批量写入数据库
+     * 已经存在的记录会被忽略，多个节点同时执行或者重复执行都不会出错
+     */
+    @Scheduled(cron = "0 10 0 * * ?")
+    public void persistSignIns() {
+        LocalDate today = LocalDate.now();
+        for (int i = PERSIST_LOOKBACK_DAYS; i >= 1; i--) {
+            persistSignIns(today.minusDays(i));
+        }
+    }
+
+    private void persistSignIns(LocalDate date) {
+        String dirtyKey = RedisConstants.USER_SIGN_DIRTY_KEY + date.format(DAY_FORMATTER);
+        List<Sign> batch = new ArrayList<>(PERSIST_BATCH_SIZE);
+        int count = 0;
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(dirtyKey, ScanOptions.scanOptions().count(PERSIST_BATCH_SIZE).build())) {
+            while (cursor.hasNext()) {
+                batch.add(new Sign()
+                        .setUserId(Long.valueOf(cursor.next()))
+                        .setYear(date.getYear())
+                        .setMonth(date.getMonthValue())
+                        .setDate(date)
+                        .setIsBackup(false));
+                if (batch.size() == PERSIST_BATCH_SIZE) {
+                    count += getBaseMapper().insertIgnoreBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            count += getBaseMapper().insertIgnoreBatch(batch);
+        }
+        stringRedisTemplate.delete(dirtyKey);
+        if (count > 0) {
+            log.info("{}的签到记录写入数据库{}条", date, count);
+        }
+    }
+
+    private static String signKey(Long userId, YearMonth month) {
+        return RedisConstants.USER_SIGN_KEY + month.format(MONTH_KEY_FORMATTER) + userId;
+    }
+
+    /**
+     * 一个月中需要统计的天数，本月只统计到今天
+     */
+    private static int signDays(YearMonth month, LocalDate today) {
+        return month.equals(YearMonth.from(today)) ? today.getDayOfMonth() : month.lengthOfMonth();
+    }
+
+    /**
+     * BITFIELD的结果，key不存在时为0
+     */
+    @SuppressWarnings("unchecked")
+    private static long firstValue(Object result) {
+        List<Long> values = (List<Long>) result;
+        if (values == null || values.isEmpty() || values.get(0) == null) {
+            return 0L;
+        }
+        return values.get(0);
+    }
+
+    /**
+     * 末尾连续1的个数，取反之后就是末尾0的个数
+     */
+    private static int trailingOnes(long bits) {
+        return Long.numberOfTrailingZeros(~bits);
+    }
+}
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
@@ -11,26 +10,29 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenClient;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TokenClient;
+import com.hmdp.utils.UserConverter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 
-import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.io.Serializable;
 import java.sql.Time;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -46,6 +48,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private TokenClient tokenClient;
+    @Resource
+    private SignedTokenClient signedTokenClient;
 
 
     /**
@@ -106,13 +114,14 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         // 5.如果是老用户，就将用户信息存放到redis中
         //session.setAttribute("user",user);
+        UserDTO userDTO = UserConverter.toDTO(user);
+        // 签名token模式下用户信息保存在token中，不写Redis
+        if (signedTokenClient.isEnabled()) {
+            return Result.ok(signedTokenClient.issue(userDTO));
+        }
         // 6.生成随机token作为key，用户信息保存到redis中，使用Hash结构进行存储
         String token = UUID.randomUUID().toString();
-        UserDTO userDTO = new UserDTO();
-        userDTO.setId(user.getId());
-        userDTO.setNickName(user.getNickName());
-        userDTO.setIcon(user.getIcon());
-        Map<String, Object> userDtoMap = beanToMap(userDTO);
+        Map<String, String> userDtoMap = UserConverter.toHash(userDTO);
         // 以hash形式存储userDto，并设置了30分钟有效期
         stringRedisTemplate.opsForHash().putAll(RedisConstants.LOGIN_USER_KEY + token, userDtoMap);
         stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY + token, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
@@ -124,83 +133,68 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     }
 
     /**
-     * 实现用户签到
-     *
-     * @return
+     * 登出：签名token加入吊销集合，Redis中的token直接删除，都会通知所有节点删除本地缓存
      */
     @Override
-    public Result sign() {
-        //获取当前登陆用户
-        Long id = UserHolder.getUser().getId();
-        //获取日期
-        LocalDateTime now = LocalDateTime.now();
-        //拼接key
-        String yyyyMM = now.format(DateTimeFormatter.ofPattern("yyyy:MM:"));
-        String key = RedisConstants.USER_SIGN_KEY + yyyyMM + id;
-        //获取今天是本月的第几天
-        int dayOfMonth = now.getDayOfMonth();
-        //写了redis
-        stringRedisTemplate.opsForValue().setBit(key, dayOfMonth - 1, true);
+    public Result logout(String token) {
+        if (signedTokenClient.isEnabled()) {
+            signedTokenClient.revoke(token);
+        } else {
+            tokenClient.remove(token);
+        }
+        UserHolder.removeUser();
         return Result.ok();
     }
 
     /**
-     * 统计连续签到天数
+     * 查询用户的公开信息（id、昵称、头像），先查缓存
+     * 返回的对象是缓存共享的，不能修改
      */
     @Override
-    public Result signCount() {
-        //获取当前登陆用户
-        Long id = UserHolder.getUser().getId();
-        //获取日期
-        LocalDateTime now = LocalDateTime.now();
-        //拼接key
-        String yyyyMM = now.format(DateTimeFormatter.ofPattern("yyyy:MM:"));
-        String key = RedisConstants.USER_SIGN_KEY + yyyyMM + id;
-        //获取今天是本月的第几天
-        int dayOfMonth = now.getDayOfMonth();
-        //获取截至本月今天的所有签到记录
-        List<Long> result = stringRedisTemplate.opsForValue().bitField(key
-                , BitFieldSubCommands
-                        .create()
-                        .get(BitFieldSubCommands.BitFieldType
-                                .unsigned(dayOfMonth))
-                        .valueAt(0)
-        );
-        if (result == null || result.isEmpty()) {
-            return Result.ok(0);
-        }
-        Long num = result.get(0);
-        if (num == null || num == 0) {
-            return Result.ok(0);
-        }
-        //转二进制字符串
-        String binaryString = Long.toBinaryString(num);
-        //计算连续签到天数
-        int count = 0;
-        for (int i = binaryString.length() - 1; i >= 0; i--) {
-            if (binaryString.charAt(i) == '1') {
-                count++;
-            } else {
-                break;
-            }
+    public UserDTO queryUserDTO(Long id) {
+        return queryUserDTOs(Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * 批量查询用户的公开信息：本地缓存、一次MGET、一次IN查询数据库（只查需要的列）
+     * 按ids的顺序返回，不存在的用户不会出现在结果中；返回的对象是缓存共享的，不能修改
+     */
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
         }
-        //返回
-        return Result.ok(count);
+        return cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> query().select("id", "nick_name", "icon")
+                        .in("id", missIds)
+                        .list()
+                        .stream()
+                        .collect(Collectors.toMap(User::getId, UserConverter::toDTO)),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
     }
 
+    /**
+     * 修改用户信息后删除缓存
+     */
+    @Override
+    public boolean updateById(User entity) {
+        boolean success = super.updateById(entity);
+        if (success) {
+            cacheClient.delete(RedisConstants.CACHE_USER_KEY + entity.getId());
+        }
+        return success;
+    }
 
     /**
-     * 将UserDTO对象转换为Map对象，
-     *
-     * @param userDTO
-     * @return
+     * 删除用户后删除缓存
      */
-    private Map<String, Object> beanToMap(UserDTO userDTO) {
-        HashMap<String, Object> map = new HashMap<>();
-        map.put("id", String.valueOf(userDTO.getId()));
-        map.put("nickName",userDTO.getNickName());
-        map.put("icno",userDTO.getIcon());
-        return map;
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean success = super.removeById(id);
+        if (success) {
+            cacheClient.delete(RedisConstants.CACHE_USER_KEY + id);
+        }
+        return success;
     }
 
     /**
@@ -1,22 +1,49 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIDWorker;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -26,6 +53,7 @@ import java.util.Collections;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -35,14 +63,287 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIDWorker redisIDWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 每次从消息队列中读取的最大订单数，也就是一次批量落库的订单数
+     */
+    @Value("${seckill.order.batch-size:100}")
+    private Integer batchSize;
+
+    /**
+     * 消费者线程数，每个线程是消费者组中的一个消费者
+     */
+    @Value("${seckill.order.workers:2}")
+    private Integer workers;
+
+    /**
+     * 消费者名称前缀，多节点部署时每个节点需要不同的前缀，重启后使用相同名称才能恢复自己的pending-list
+     */
+    @Value("${seckill.order.consumer-prefix:c}")
+    private String consumerPrefix;
+
+    /**
+     * 已下单用户的存储方式：set 用户id的集合；bitmap 以用户id为偏移量的位图，下单用户很多时占用内存小得多
+     */
+    @Value("${layout.seckill-order:set}")
+    private String orderLayout;
+
+    /**
+     * 只读取默认队列时的阻塞时间；读取多个队列时都没有消息的休眠时间；重新加载分段队列的间隔
+     */
+    private static final Duration STREAM_BLOCK = Duration.ofSeconds(2);
+    private static final long STREAM_IDLE_MILLIS = 50L;
+    private static final long STREAMS_RELOAD_MILLIS = 5000L;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    /**
+     * 优惠券的库存分段数，优惠券创建之后不会再变化，所以缓存在本地
+     */
+    private final Map<Long, Integer> stockSegments = new ConcurrentHashMap<>();
+
+    /**
+     * 本地售罄标记，已经售罄的优惠券直接返回，不再访问Redis
+     * 库存只减不增，所以标记一旦设置就不需要清除
+     */
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
 
     // 加载lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+
+        SECKILL_SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SECKILL_SEGMENT_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 项目启动后创建消费者组，并启动消费者线程处理订单消息
+     */
+    @PostConstruct
+    private void init() {
+        createGroup(RedisConstants.SECKILL_ORDER_STREAM_KEY);
+        // 订阅售罄消息，其他节点发现售罄时同步设置本地售罄标记
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOutVouchers.add(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(i, consumerPrefix + i));
+        }
+    }
+
+    /**
+     * XGROUP CREATE stream.orders g1 0 MKSTREAM，从头开始消费，创建组之前写入的消息也不会丢失
+     */
+    private void createGroup(String streamKey) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), RedisConstants.SECKILL_ORDER_GROUP);
+        } catch (Exception e) {
+            // 消费者组已存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 消费者线程：批量读取订单消息，批量落库后再确认
+     * 所有线程都读取默认队列stream.orders；分段库存的订单写入各分段自己的队列（与分段库存在同一个slot），
+     * 分段队列登记在stream.orders:keys中，按队列key的hash分配给一个线程读取，定时重新加载发现新的分段队列。
+     * 集群模式下不同分段队列在不同slot，不能在一次XREADGROUP中读取，所以逐个队列读取，都没有消息时短暂休眠
+     */
+    private class VoucherOrderHandler implements Runnable {
+
+        private final int index;
+
+        private final String consumerName;
+
+        /**
+         * 这个线程负责的分段队列
+         */
+        private final Set<String> segmentStreams = new LinkedHashSet<>();
+
+        private long streamsLoadedAt;
+
+        VoucherOrderHandler(int index, String consumerName) {
+            this.index = index;
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            // 1.先处理重启前已经读取但是没有确认的消息
+            handlePendingList(RedisConstants.SECKILL_ORDER_STREAM_KEY);
+            while (running) {
+                loadSegmentStreams();
+                // 2.没有分段队列时和之前一样阻塞读取默认队列
+                if (segmentStreams.isEmpty()) {
+                    readStream(RedisConstants.SECKILL_ORDER_STREAM_KEY, STREAM_BLOCK);
+                    continue;
+                }
+                // 3.逐个队列非阻塞读取，都没有消息时休眠一会
+                boolean idle = !readStream(RedisConstants.SECKILL_ORDER_STREAM_KEY, null);
+                for (String streamKey : segmentStreams) {
+                    idle &= !readStream(streamKey, null);
+                }
+                if (idle) {
+                    try {
+                        Thread.sleep(STREAM_IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 读取一个队列的订单并落库，返回是否读到了消息
+         */
+        private boolean readStream(String streamKey, Duration block) {
+            try {
+                // XREADGROUP GROUP g1 c0 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+                StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                        block == null ? options : options.block(block),
+                        StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    return false;
+                }
+                // 批量创建订单并确认
+                handleRecords(streamKey, list);
+                return true;
+            } catch (Exception e) {
+                log.error("处理订单异常", e);
+                // 出现异常的消息还在pending-list中，去pending-list中处理
+                handlePendingList(streamKey);
+                return true;
+            }
+        }
+
+        /**
+         * 定时重新加载分段队列，新分配给这个线程的队列先创建消费者组并处理pending-list
+         */
+        private void loadSegmentStreams() {
+            long now = System.currentTimeMillis();
+            if (now - streamsLoadedAt < STREAMS_RELOAD_MILLIS) {
+                return;
+            }
+            streamsLoadedAt = now;
+            Set<String> streamKeys;
+            try {
+                streamKeys = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_ORDER_STREAMS_KEY);
+            } catch (Exception e) {
+                log.error("加载分段订单队列失败", e);
+                return;
+            }
+            if (streamKeys == null) {
+                return;
+            }
+            for (String streamKey : streamKeys) {
+                if (Math.floorMod(streamKey.hashCode(), workers) != index || segmentStreams.contains(streamKey)) {
+                    continue;
+                }
+                createGroup(streamKey);
+                handlePendingList(streamKey);
+                segmentStreams.add(streamKey);
+            }
+        }
+
+        private void handlePendingList(String streamKey) {
+            while (running) {
+                try {
+                    // 1.获取pending-list中的订单 XREADGROUP GROUP g1 c0 COUNT 100 STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(streamKey, ReadOffset.from("0"))
+                    );
+                    // 2.pending-list中没有消息，结束
+                    if (list == null || list.isEmpty()) {
+                        break;
+                    }
+                    handleRecords(streamKey, list);
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 一批消息在一个事务中落库，事务提交后再ACK；落库失败则消息留在pending-list中等待重试
+     */
+    private void handleRecords(String streamKey, List<MapRecord<String, Object, Object>> list) {
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        RecordId[] recordIds = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, Object, Object> record = list.get(i);
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
+        }
+        transactionTemplate.executeWithoutResult(status -> createVoucherOrders(orders));
+        // XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, recordIds);
+    }
+
+    /**
+     * 批量创建订单：一条多行insert，每个优惠券一条 stock = stock - n
+     * 一人一单和库存已经由lua脚本保证，这里只需要过滤掉已经落库但未ACK的重复消息
+     */
+    private void createVoucherOrders(List<VoucherOrder> orders) {
+        // 1.过滤掉已经存在的订单（上一次落库成功但是ACK失败）
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> newOrders = orders.stream()
+                .filter(order -> !existIds.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (newOrders.isEmpty()) {
+            return;
+        }
+
+        // 2.批量插入订单
+        getBaseMapper().insertBatch(newOrders);
+
+        // 3.按优惠券分组扣减库存
+        Map<Long, Long> countMap = newOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countMap.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (!success) {
+                // Redis中的库存已经扣减成功，数据库库存不足说明两边数据不一致
+                log.error("数据库库存不足，voucherId：{}，扣减数量：{}", voucherId, count);
+            }
+        });
     }
 
     /**
@@ -50,30 +351,89 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.本地已经标记售罄，直接返回
+        if (soldOutVouchers.contains(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userId = UserHolder.getUser().getId();
-        // 1.执行lua脚本
-        Long execute = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString());
+        // 1.生成orderId
+        Long orderId = redisIDWorker.getId("order");
+        // 2.执行lua脚本，有购买资格时订单会发送到消息队列中
+        int segments = getStockSegments(voucherId);
+        Long execute = segments > 1
+                ? seckillWithSegments(voucherId, userId, orderId, segments)
+                : stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), orderId.toString(), orderLayout);
         int res = execute.intValue();
 
-        // 2.判断是否有购买资格，没有就返回(lua返回结果不为0)
+        // 3.判断是否有购买资格，没有就返回(lua返回结果不为0)
+        if (res == 1) {
+            // 3.1库存不足，设置本地售罄标记，并通知其他节点
+            markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        if (res == 3) {
+            // 3.2库存还没有写入Redis，优惠券不存在或者还没有创建完成，不能设置售罄标记
+            return Result.fail("优惠券不存在");
+        }
         if (res != 0) {
-            return Result.fail(res == 1 ? "库存不足" : "不可以重复下单");
+            return Result.fail("不可以重复下单");
         }
 
-        // 3.生成orderId，放到消息队列中
-        Long orderId = redisIDWorker.getId("order");
-        // TODO:orderId放入消息队列
-        // 4.1生成订单
-        VoucherOrder order = new VoucherOrder();
-        order.setId(orderId);
-        order.setVoucherId(voucherId);
-        order.setUserId(userId);
-        order.setCreateTime(LocalDateTime.now());
-
-        // 5.返回结果
+        // 4.返回订单id，订单由消费者线程异步落库
         return Result.ok(orderId);
     }
 
+    /**
+     * 分段库存秒杀
+     * 根据用户id选择起始分段，起始分段售罄时按顺序尝试相邻的分段，所有分段都售罄才返回库存不足
+     */
+    private Long seckillWithSegments(Long voucherId, Long userId, Long orderId, int segments) {
+        int start = (int) Math.floorMod(userId, (long) segments);
+        for (int i = 0; i < segments; i++) {
+            int segment = (start + i) % segments;
+            String orderKey = "bitmap".equals(orderLayout)
+                    ? RedisConstants.seckillOrderBitsSegmentKey(voucherId, segment)
+                    : RedisConstants.seckillOrderSegmentKey(voucherId, segment);
+            Long res = stringRedisTemplate.execute(SECKILL_SEGMENT_SCRIPT,
+                    Arrays.asList(RedisConstants.seckillStockSegmentKey(voucherId, segment), orderKey,
+                            RedisConstants.seckillOrderStreamSegmentKey(voucherId, segment)),
+                    voucherId.toString(), userId.toString(), orderId.toString(), orderLayout);
+            if (res == null || res != 1) {
+                return res;
+            }
+        }
+        return 1L;
+    }
+
+    /**
+     * 设置本地售罄标记，第一次发现售罄时通过Redis发布订阅广播给其他节点
+     */
+    private void markSoldOut(Long voucherId) {
+        if (soldOutVouchers.add(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 查询优惠券的库存分段数，没有分段信息的优惠券按不分段处理
+     * 只缓存从Redis读到的分段数：分段数在各分段库存写好之后才写入，读不到可能是优惠券还没创建完成，
+     * 缓存默认值会让分段优惠券一直按不分段处理
+     */
+    private int getStockSegments(Long voucherId) {
+        Integer cached = stockSegments.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String segments = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SEGMENTS_KEY + voucherId);
+        if (segments == null) {
+            return 1;
+        }
+        int count = Integer.parseInt(segments);
+        stockSegments.put(voucherId, count);
+        return count;
+    }
+
 
     /**
      * 秒杀优惠券的功能
@@ -7,6 +7,10 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -26,6 +30,8 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -47,5 +53,35 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 保存秒杀库存到Redis中
+        saveSeckillStock2Redis(voucher);
+    }
+
+    /**
+     * 将秒杀库存写入Redis
+     * 分段数大于1时，库存平均拆分到多个分段key中，余数分给前面的分段；
+     * 各分段在不同的slot，不能用MSET，用pipeline逐个写入，同时登记分段的订单消息队列，由消费者线程读取
+     * 分段数最后写入，读到分段数时各分段的库存一定已经写好了
+     */
+    private void saveSeckillStock2Redis(Voucher voucher) {
+        Long voucherId = voucher.getId();
+        int stock = voucher.getStock();
+        int segments = voucher.getSegments() == null ? 1 : Math.max(1, voucher.getSegments());
+        if (segments == 1) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SEGMENTS_KEY + voucherId, "1");
+            return;
+        }
+        int base = stock / segments;
+        int remainder = stock % segments;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < segments; i++) {
+                stringRedisConnection.set(RedisConstants.seckillStockSegmentKey(voucherId, i), String.valueOf(i < remainder ? base + 1 : base));
+                stringRedisConnection.sAdd(RedisConstants.SECKILL_ORDER_STREAMS_KEY, RedisConstants.seckillOrderStreamSegmentKey(voucherId, i));
+            }
+            return null;
+        });
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(segments));
     }
 }
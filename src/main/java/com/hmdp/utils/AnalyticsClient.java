@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于HyperLogLog的UV统计：店铺UV、博客UV、日活、签到人数
+ * 每个统计对象每天一个HLL uv:{scope}:yyyyMMdd，不管有多少访客，每个最多占用12KB，误差约0.81%；
+ * 请求线程只把访问记录放入有界队列，由定时任务按key分组后用pipeline批量PFADD，队列满时丢弃（统计允许少量误差）
+ */
+@Slf4j
+@Component
+public class AnalyticsClient {
+
+    public static final String SCOPE_DAU = "dau";
+    public static final String SCOPE_SIGN = "sign";
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * 一次查询最多统计的天数
+     */
+    private static final int MAX_RANGE_DAYS = 366;
+
+    /**
+     * 合并多天的结果缓存时间，只缓存不包含今天的范围
+     */
+    private static final long RANGE_CACHE_TTL_HOURS = 1L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 等待写入的访问记录上限
+     */
+    @Value("${analytics.queue-size:100000}")
+    private Integer queueSize;
+
+    /**
+     * 每个pipeline写入的访问记录数
+     */
+    @Value("${analytics.batch-size:500}")
+    private Integer batchSize;
+
+    /**
+     * 每天的HLL保留的天数
+     */
+    @Value("${analytics.ttl-days:90}")
+    private Long ttlDays;
+
+    private BlockingQueue<String[]> queue;
+
+    /**
+     * 本节点今天已经记录过日活的用户，避免每个请求都写入队列
+     */
+    private final LocalCache<Boolean> activeUsers = new LocalCache<>(100000, TimeUnit.MINUTES.toMillis(10));
+
+    private final LongAdder dropped = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    public static String shopScope(Long shopId) {
+        return "shop:" + shopId;
+    }
+
+    public static String blogScope(Long blogId) {
+        return "blog:" + blogId;
+    }
+
+    /**
+     * 访客标识：登录用户用用户id，未登录用客户端ip
+     */
+    public static String visitor(HttpServletRequest request) {
+        UserDTO user = UserHolder.getUser();
+        return user != null ? user.getId().toString() : "ip:" + request.getRemoteAddr();
+    }
+
+    /**
+     * 记录一次访问，只放入队列，不访问Redis
+     */
+    public void record(String scope, String visitor) {
+        String key = RedisConstants.uvKey(scope, LocalDate.now().format(DAY_FORMATTER));
+        if (!queue.offer(new String[]{key, visitor})) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * 记录日活，同一个用户在本节点10分钟内只记录一次
+     */
+    public void recordActive(Long userId) {
+        String day = LocalDate.now().format(DAY_FORMATTER);
+        String localKey = day + ":" + userId;
+        if (activeUsers.get(localKey) != null) {
+            return;
+        }
+        activeUsers.put(localKey, Boolean.TRUE);
+        record(SCOPE_DAU, userId.toString());
+    }
+
+    /**
+     * 把队列中的访问记录按key分组，分批用pipeline写入
+     * 定时任务线程池有多个线程（spring.task.scheduling.pool.size），凌晨耗时的重建任务不会让队列堆积
+     */
+    @Scheduled(fixedDelay = 500)
+    public void flush() {
+        List<String[]> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            Map<String, List<String>> visitors = new HashMap<>();
+            for (String[] record : batch) {
+                visitors.computeIfAbsent(record[0], key -> new ArrayList<>()).add(record[1]);
+            }
+            batch.clear();
+            try {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                    visitors.forEach((key, values) -> {
+                        stringRedisConnection.pfAdd(key, values.toArray(new String[0]));
+                        stringRedisConnection.expire(key, TimeUnit.DAYS.toSeconds(ttlDays));
+                    });
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("写入UV统计失败", e);
+                return;
+            }
+        }
+        long droppedCount = dropped.sumThenReset();
+        if (droppedCount > 0) {
+            log.warn("UV统计队列已满，丢弃{}条访问记录", droppedCount);
+        }
+    }
+
+    /**
+     * 统计[begin, end]的UV，一天直接PFCOUNT；多天先PFMERGE到范围key再PFCOUNT，不包含今天的范围会缓存合并结果
+     */
+    public long count(String scope, LocalDate begin, LocalDate end) {
+        if (begin.equals(end)) {
+            Long count = stringRedisTemplate.opsForHyperLogLog().size(RedisConstants.uvKey(scope, begin.format(DAY_FORMATTER)));
+            return count == null ? 0 : count;
+        }
+        String rangeKey = RedisConstants.uvKey(scope, begin.format(DAY_FORMATTER) + "-" + end.format(DAY_FORMATTER));
+        boolean cacheable = end.isBefore(LocalDate.now());
+        if (!cacheable || !BooleanUtil.isTrue(stringRedisTemplate.hasKey(rangeKey))) {
+            List<String> dayKeys = new ArrayList<>();
+            for (LocalDate day = begin; !day.isAfter(end); day = day.plusDays(1)) {
+                dayKeys.add(RedisConstants.uvKey(scope, day.format(DAY_FORMATTER)));
+            }
+            stringRedisTemplate.delete(rangeKey);
+            Long count = stringRedisTemplate.opsForHyperLogLog().union(rangeKey, dayKeys.toArray(new String[0]));
+            stringRedisTemplate.expire(rangeKey, RANGE_CACHE_TTL_HOURS, TimeUnit.HOURS);
+            return count == null ? 0 : count;
+        }
+        Long count = stringRedisTemplate.opsForHyperLogLog().size(rangeKey);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 解析统计范围yyyyMMdd，begin为空时是今天，end为空时和begin相同；范围不合法时返回null
+     */
+    public static LocalDate[] parseRange(String begin, String end) {
+        try {
+            LocalDate beginDate = begin == null || begin.isEmpty() ? LocalDate.now() : LocalDate.parse(begin, DAY_FORMATTER);
+            LocalDate endDate = end == null || end.isEmpty() ? beginDate : LocalDate.parse(end, DAY_FORMATTER);
+            if (endDate.isBefore(beginDate) || beginDate.plusDays(MAX_RANGE_DAYS).isBefore(endDate)) {
+                return null;
+            }
+            return new LocalDate[]{beginDate, endDate};
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
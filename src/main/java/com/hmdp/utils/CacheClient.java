@@ -8,13 +8,35 @@ import com.hmdp.entity.Shop;
 
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.executor.RedissonClassLoader;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 @Slf4j
@@ -23,8 +45,67 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    /**
+     * 本JVM内正在加载的key，同一个key的并发未命中共享同一次加载
+     */
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其他节点重建缓存的key，收到重建完成的通知后唤醒
+     */
+    private final Map<String, CompletableFuture<Void>> rebuildWaiters = new ConcurrentHashMap<>();
+
+    /**
+     * 一级缓存（本地），保存反序列化之后的对象，命中时不需要访问Redis也不需要解析JSON
+     * 缓存的对象是共享的，调用方不能修改返回的对象
+     */
+    private final LocalCache<Object> localCache = new LocalCache<>(SystemConstants.LOCAL_CACHE_MAX_SIZE, SystemConstants.LOCAL_CACHE_TTL);
+
+    /**
+     * 每种缓存key前缀对应的布隆过滤器，没有注册的前缀不做判断
+     */
+    private final Map<String, IdBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 新增id记录的保留时间，超过这个时间的id已经包含在每天的全量重建中
+     */
+    private static final long BLOOM_ADDED_RETAIN_MILLIS = TimeUnit.DAYS.toMillis(2);
+
+    /**
+     * 同步新增id时多读取的时间，容忍节点之间的时钟误差
+     */
+    private static final long BLOOM_SYNC_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * 上一次同步新增id的时间，启动之前新增的id由启动时的全量加载覆盖
+     */
+    private volatile long bloomSyncedAt = System.currentTimeMillis();
+
+    /**
+     * 各级缓存的命中统计
+     */
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder localMisses = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer){
         this.stringRedisTemplate = stringRedisTemplate;
+        // 订阅缓存重建完成的通知
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> waiter = rebuildWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_REBUILT_CHANNEL));
+        // 订阅缓存失效的通知，删除本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 订阅布隆过滤器新增id的通知，其他节点新增的数据同步到本节点的过滤器
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> addLocalBloomFilter(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.BLOOM_FILTER_ADD_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
@@ -42,14 +123,25 @@ public class CacheClient {
      * 缓存空对象解决缓存穿透
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallBack,Long time,TimeUnit unit){
+        // 0.布隆过滤器判断不存在，直接返回，不访问Redis和数据库
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1.先从redis中查询
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 1.先查询本地缓存
+        R local = getLocal(key);
+        if(local != null){
+            return local;
+        }
+        // 2.再从redis中查询
+        String json = getRemote(key);
 
         // 2.判断是否查询到结果
         if(!StringUtils.isEmpty(json)){
-            // 3.查询到就返回
-            return JSONUtil.toBean(json,type);
+            // 3.查询到就返回，同时写入本地缓存
+            R r = JSONUtil.toBean(json,type);
+            localCache.put(key, r, unit.toMillis(time));
+            return r;
         }
 
         if("".equals(json)){
@@ -64,18 +156,238 @@ public class CacheClient {
             set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.SECONDS);
             return null;
         }
-        // 7.存在数据库中就返回，同时写入redis
+        // 7.存在数据库中就返回，同时写入redis和本地缓存
         set(key,r,time,unit);
+        localCache.put(key, r, unit.toMillis(time));
         return r;
     }
 
+    /**
+     * 批量查询，缓存空对象解决缓存穿透
+     * 本地缓存未命中的key用一次MGET查询，Redis也未命中的id用一次IN查询从数据库加载，再用pipeline批量写回Redis
+     * @param dbFallBack 根据一批id查询数据库，返回 id -> 数据，不存在的id不需要放入结果中
+     * @return 按ids的顺序返回存在的数据，不存在的id不会出现在结果中
+     */
+    public <R,ID> Map<ID,R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                      Function<Collection<ID>, Map<ID,R>> dbFallBack, Long time, TimeUnit unit){
+        Map<ID,R> found = new HashMap<>(ids.size());
+        // 1.布隆过滤器和本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        Set<ID> seenIds = new HashSet<>(ids.size() * 2);
+        for (ID id : ids) {
+            // 重复的id只处理一次
+            if(!seenIds.add(id) || !mightContain(keyPrefix, id)){
+                continue;
+            }
+            R local = getLocal(keyPrefix + id);
+            if(local != null){
+                found.put(id, local);
+            }else {
+                remoteIds.add(id);
+            }
+        }
+
+        // 2.一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if(!remoteIds.isEmpty()){
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            remoteIds.forEach(id -> keys.add(keyPrefix + id));
+            List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                String json = jsons == null ? null : jsons.get(i);
+                if(json == null){
+                    redisMisses.increment();
+                    missIds.add(remoteIds.get(i));
+                    continue;
+                }
+                redisHits.increment();
+                // 空对象说明数据库中也不存在
+                if(!"".equals(json)){
+                    R r = JSONUtil.toBean(json, type);
+                    found.put(remoteIds.get(i), r);
+                    localCache.put(keys.get(i), r, unit.toMillis(time));
+                }
+            }
+        }
+
+        // 3.Redis也未命中的id一次查询数据库，pipeline批量写回Redis，不存在的id写入空对象
+        if(!missIds.isEmpty()){
+            Map<ID,R> loaded = dbFallBack.apply(missIds);
+            Map<String,String> values = new HashMap<>(missIds.size());
+            Map<String,String> nullValues = new HashMap<>();
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                String key = keyPrefix + id;
+                if(r == null){
+                    nullValues.put(key, "");
+                    continue;
+                }
+                found.put(id, r);
+                values.put(key, JSONUtil.toJsonStr(r));
+                localCache.put(key, r, unit.toMillis(time));
+            }
+            multiSet(values, time, unit);
+            multiSet(nullValues, RedisConstants.CACHE_NULL_TTL, TimeUnit.SECONDS);
+        }
+
+        // 4.按传入的顺序返回
+        Map<ID,R> result = new LinkedHashMap<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 使用pipeline批量写入带过期时间的数据，一次网络往返
+     */
+    public void multiSet(Map<String,String> values, Long time, TimeUnit unit){
+        if(values.isEmpty()){
+            return;
+        }
+        Expiration expiration = Expiration.from(time, unit);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            values.forEach((key, value) -> stringRedisConnection.set(key, value, expiration, RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
+    }
+
+    /**
+     * 互斥锁的方式解决缓存击穿
+     * 同一个JVM内同一个key的并发未命中只会有一个线程去加载，其他线程等待这次加载的结果；
+     * 多个节点之间通过Redis互斥锁保证只有一个节点查询数据库
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallBack, Long time, TimeUnit unit){
+        // 0.布隆过滤器判断不存在，直接返回，不访问Redis和数据库
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 1.先查询本地缓存
+        R local = getLocal(key);
+        if(local != null){
+            return local;
+        }
+        // 2.再从redis中查询
+        String json = getRemote(key);
+        if(!StringUtils.isEmpty(json)){
+            R r = JSONUtil.toBean(json,type);
+            localCache.put(key, r, unit.toMillis(time));
+            return r;
+        }
+        if("".equals(json)){
+            return null;
+        }
+
+        // 3.没有命中，已经有线程在加载这个key，等待它的结果
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, future);
+        if(inFlight != null){
+            try {
+                return (R) inFlight.get(RedisConstants.CACHE_LOAD_WAIT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 等待超时，不再继续阻塞，直接查询数据库
+                log.warn("等待缓存加载超时，key：{}", key);
+                return dbFallBack.apply(id);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        // 4.当前线程负责加载
+        try {
+            R r = loadWithMutex(key, id, type, dbFallBack, time, unit);
+            if(r != null){
+                localCache.put(key, r, unit.toMillis(time));
+            }
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    /**
+     * 获取互斥锁后重建缓存；获取锁失败说明其他节点正在重建，等待重建完成的通知，而不是固定休眠
+     */
+    private <R,ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallBack, Long time, TimeUnit unit){
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        // 1.先注册等待，避免其他节点在获取锁失败之后、开始等待之前就已经重建完成
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        rebuildWaiters.put(key, waiter);
+        try {
+            if(tryLock(lockKey)){
+                try {
+                    // 2.获取锁成功，再次检查缓存，可能其他节点刚刚重建完成
+                    String json = stringRedisTemplate.opsForValue().get(key);
+                    if(!StringUtils.isEmpty(json)){
+                        return JSONUtil.toBean(json,type);
+                    }
+                    // 3.查询数据库并写入缓存
+                    R r = dbFallBack.apply(id);
+                    if(r == null){
+                        set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.SECONDS);
+                    }else {
+                        set(key,r,time,unit);
+                    }
+                    // 4.通知其他等待的节点
+                    stringRedisTemplate.convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, key);
+                    return r;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+
+            // 5.获取锁失败，等待重建完成的通知，最多等待CACHE_REBUILD_WAIT毫秒
+            try {
+                waiter.get(RedisConstants.CACHE_REBUILD_WAIT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                log.debug("等待缓存重建通知超时，key：{}", key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if(!StringUtils.isEmpty(json)){
+                return JSONUtil.toBean(json,type);
+            }
+            if("".equals(json)){
+                return null;
+            }
+            // 6.仍然没有数据，直接查询数据库，保证请求不会被长时间阻塞
+            return dbFallBack.apply(id);
+        } finally {
+            rebuildWaiters.remove(key, waiter);
+        }
+    }
+
     /**
      * 逻辑过期的方式解决缓存击穿
      */
     public <R,ID> R queryWithLogicExpire(String prefix,ID id,Class<R> type, Function<ID,R> dbFallBack,Long time,TimeUnit unit){
+        // 0.布隆过滤器判断不存在，直接返回
+        if(!mightContain(prefix, id)){
+            return null;
+        }
         String key = prefix + id;
-        // 1.先去redis中查询
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 1.先查询本地缓存，本地缓存的过期时间不会超过逻辑过期时间，所以命中的一定是没有过期的数据
+        R local = getLocal(key);
+        if(local != null){
+            return local;
+        }
+        // 2.再去redis中查询
+        String json = getRemote(key);
 
         // 2.如果没查询到或者是空对象  直接返回
         if(StringUtils.isEmpty(json)){
@@ -88,7 +400,8 @@ public class CacheClient {
 
         // 3.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())){
-            // 没有过期，返回数据
+            // 没有过期，写入本地缓存并返回数据
+            localCache.put(key, r, Duration.between(LocalDateTime.now(), expireTime).toMillis());
             return r;
         }
 
@@ -119,6 +432,142 @@ public class CacheClient {
     }
 
 
+    /**
+     * 删除缓存，同时通知所有节点删除本地缓存
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        localCache.remove(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除缓存，一次DEL删除Redis缓存，再用pipeline通知所有节点删除本地缓存
+     */
+    public void deleteBatch(Collection<String> keys){
+        if(keys.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(localCache::remove);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            keys.forEach(key -> stringRedisConnection.publish(RedisConstants.CACHE_INVALIDATE_CHANNEL, key));
+            return null;
+        });
+    }
+
+    /**
+     * 注册某种缓存key前缀的布隆过滤器
+     */
+    public void registerBloomFilter(String keyPrefix, IdBloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 判断id是否可能存在，没有注册布隆过滤器时总是返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id){
+        IdBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter == null || !(id instanceof Long)){
+            return true;
+        }
+        return bloomFilter.mightContain((Long) id);
+    }
+
+    /**
+     * 新增数据后把id加入布隆过滤器，并通知其他节点
+     * id同时记录到Redis的 bloom:added:{keyPrefix}（score为新增时间），错过通知的节点由定时同步补上，
+     * 最多在一个同步周期内把新增的数据误判为不存在
+     */
+    public void addToBloomFilter(String keyPrefix, Long id){
+        IdBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter != null){
+            bloomFilter.add(id);
+        }
+        stringRedisTemplate.opsForZSet().add(RedisConstants.BLOOM_FILTER_ADDED_KEY + keyPrefix, id.toString(), System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_ADD_CHANNEL, keyPrefix + id);
+    }
+
+    /**
+     * 定时把上次同步之后新增的id加入本地布隆过滤器，并删除已经包含在全量重建中的记录
+     */
+    @Scheduled(fixedDelayString = "${bloom-filter.sync-millis:10000}")
+    public void syncBloomFilters(){
+        if(bloomFilters.isEmpty()){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long since = bloomSyncedAt - BLOOM_SYNC_OVERLAP_MILLIS;
+        try {
+            bloomFilters.forEach((keyPrefix, bloomFilter) -> {
+                String key = RedisConstants.BLOOM_FILTER_ADDED_KEY + keyPrefix;
+                Set<String> ids = stringRedisTemplate.opsForZSet().rangeByScore(key, since, Double.MAX_VALUE);
+                if(ids != null){
+                    ids.forEach(id -> bloomFilter.add(Long.parseLong(id)));
+                }
+                stringRedisTemplate.opsForZSet().removeRangeByScore(key, 0, now - BLOOM_ADDED_RETAIN_MILLIS);
+            });
+            bloomSyncedAt = now;
+        } catch (Exception e) {
+            // 同步失败，下次从上一次成功的时间继续同步
+            log.error("同步布隆过滤器新增id失败", e);
+        }
+    }
+
+    private void addLocalBloomFilter(String key){
+        bloomFilters.forEach((keyPrefix, bloomFilter) -> {
+            if(key.startsWith(keyPrefix)){
+                try {
+                    bloomFilter.add(Long.parseLong(key.substring(keyPrefix.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("布隆过滤器通知格式错误：{}", key);
+                }
+            }
+        });
+    }
+
+    /**
+     * 各级缓存的命中率统计
+     */
+    public Map<String, Object> stats(){
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("localSize", localCache.size());
+        stats.put("localHits", localHits.sum());
+        stats.put("localMisses", localMisses.sum());
+        stats.put("localHitRatio", hitRatio(localHits.sum(), localMisses.sum()));
+        stats.put("redisHits", redisHits.sum());
+        stats.put("redisMisses", redisMisses.sum());
+        stats.put("redisHitRatio", hitRatio(redisHits.sum(), redisMisses.sum()));
+        return stats;
+    }
+
+    private double hitRatio(long hits, long misses){
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R getLocal(String key){
+        Object value = localCache.get(key);
+        if(value == null){
+            localMisses.increment();
+            return null;
+        }
+        localHits.increment();
+        return (R) value;
+    }
+
+    private String getRemote(String key){
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if(json == null){
+            redisMisses.increment();
+        }else {
+            redisHits.increment();
+        }
+        return json;
+    }
+
     /**
      * 尝试获得互斥锁 （setnx lockKey）
      * @param key 锁的标识
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 列表数据补全（作者、点赞状态、店铺名等）的并发执行器
+ * 同一页的多个互不依赖的查询并发执行，页面耗时是最慢的查询而不是所有查询之和；
+ * 线程数和队列都有上限，队列满或者查询超时时这一项降级为默认值，不会拖慢整个请求
+ */
+@Slf4j
+@Component
+public class EnrichExecutor {
+
+    /**
+     * 线程数
+     */
+    @Value("${enrich.threads:8}")
+    private Integer threads;
+
+    /**
+     * 等待执行的任务数上限，超过后直接降级
+     */
+    @Value("${enrich.queue-size:256}")
+    private Integer queueSize;
+
+    /**
+     * 每一项查询的超时时间，从开始补全时计算
+     */
+    @Value("${enrich.timeout-millis:300}")
+    private Long timeoutMillis;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(queueSize),
+                ThreadFactoryBuilder.create().setNamePrefix("enrich-").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 异步执行一项查询，把当前线程的登录用户传递到执行线程
+     * 任务以FutureTask提交，超时取消时会中断执行线程：等待Redis响应、sleep等可中断的阻塞会立即结束，线程回到池中；
+     * JDBC等不响应中断的调用仍然要等到自己的超时
+     * 线程池已满时返回异常结束的future，由join降级
+     */
+    public <T> Future<T> supply(Callable<T> task) {
+        UserDTO user = UserHolder.getUser();
+        try {
+            return executor.submit(() -> {
+                UserHolder.saveUser(user);
+                try {
+                    return task.call();
+                } finally {
+                    UserHolder.removeUser();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 等待一项查询的结果，最多等到deadline（System.nanoTime()），超时、失败时返回默认值
+     * 多项查询使用同一个deadline，总的等待时间不超过一次超时时间；超时的查询会被取消并中断执行线程
+     */
+    public <T> T join(Future<T> future, long deadline, String stage, T fallback) {
+        try {
+            T result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return result == null ? fallback : result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            log.warn("补全{}超时，已中断查询线程，降级为默认值", stage);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("补全{}失败，降级为默认值", stage, e.getCause());
+        }
+        return fallback;
+    }
+
+    /**
+     * 从现在开始计算的deadline
+     */
+    public long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+}
@@ -0,0 +1,254 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Feed流的推拉结合：
+ * 普通博主发布博客时推送到每个粉丝的收件箱 feed:{userId}；
+ * 粉丝数超过阈值的大V只写入自己的发件箱 feed:outbox:{authorId}，粉丝读取时再把收件箱和关注的大V的发件箱合并
+ * 收件箱只保留最新的inboxMaxSize条，长时间没有读取的收件箱会过期，读取时从数据库重建
+ */
+@Slf4j
+@Component
+public class FeedClient {
+
+    /**
+     * 收件箱重建的标记，score为-1，不会被读取到，保证没有关注任何人的用户重建后收件箱也存在
+     */
+    private static final String INBOX_MARKER = "0";
+
+    private static final DefaultRedisScript<Long> FEED_PUSH_SCRIPT;
+
+    static {
+        FEED_PUSH_SCRIPT = new DefaultRedisScript<>();
+        FEED_PUSH_SCRIPT.setLocation(new ClassPathResource("feed_push.lua"));
+        FEED_PUSH_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 粉丝数达到这个值的博主只写发件箱
+     */
+    @Value("${feed.big-author-threshold:10000}")
+    private Long bigAuthorThreshold;
+
+    /**
+     * 推送时每个pipeline写入的收件箱数量
+     */
+    @Value("${feed.fan-out-batch-size:1000}")
+    private Integer fanOutBatchSize;
+
+    /**
+     * 发件箱最多保留的博客数量
+     */
+    @Value("${feed.outbox-max-size:1000}")
+    private Integer outboxMaxSize;
+
+    /**
+     * 收件箱最多保留的博客数量
+     */
+    @Value("${feed.inbox-max-size:1000}")
+    private Integer inboxMaxSize;
+
+    /**
+     * 收件箱多少天没有读取就过期
+     */
+    @Value("${feed.inbox-ttl-days:7}")
+    private Long inboxTtlDays;
+
+    /**
+     * 每页条数
+     */
+    @Value("${feed.page-size:10}")
+    private Integer pageSize;
+
+    public boolean isBigAuthor(long fansCount) {
+        return fansCount >= bigAuthorThreshold;
+    }
+
+    public int getFanOutBatchSize() {
+        return fanOutBatchSize;
+    }
+
+    public int getInboxMaxSize() {
+        return inboxMaxSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * 把博客推送到一批粉丝的收件箱，同时裁剪收件箱，一批只需要一次网络往返
+     * 过期的收件箱不推送，读取时会从数据库重建
+     */
+    public void pushToInboxes(Long blogId, long timestamp, Collection<Long> fanIds) {
+        if (fanIds.isEmpty()) {
+            return;
+        }
+        try {
+            executePush(blogId, timestamp, fanIds);
+        } catch (Exception e) {
+            // Redis重启后脚本缓存会被清空，重新加载脚本再推送一次，重复推送不会出错
+            log.warn("推送收件箱失败，重新加载脚本后重试，blogId：{}", blogId, e);
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    ((StringRedisConnection) connection).scriptLoad(FEED_PUSH_SCRIPT.getScriptAsString()));
+            executePush(blogId, timestamp, fanIds);
+        }
+    }
+
+    private void executePush(Long blogId, long timestamp, Collection<Long> fanIds) {
+        String sha = FEED_PUSH_SCRIPT.getSha1();
+        String value = blogId.toString();
+        String score = String.valueOf(timestamp);
+        String maxSize = inboxMaxSize.toString();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (Long fanId : fanIds) {
+                stringRedisConnection.evalSha(sha, ReturnType.INTEGER, 1,
+                        RedisConstants.FEED_KEY + fanId, value, score, maxSize);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 读取收件箱时刷新过期时间，返回收件箱是否存在
+     */
+    public boolean touchInbox(Long userId) {
+        return BooleanUtil.isTrue(stringRedisTemplate.expire(RedisConstants.FEED_KEY + userId, inboxTtlDays, TimeUnit.DAYS));
+    }
+
+    /**
+     * 用数据库中查到的博客重建收件箱，key为博客id，value为发布时间
+     */
+    public void rebuildInbox(Long userId, Map<Long, Long> blogs) {
+        String key = RedisConstants.FEED_KEY + userId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.zAdd(key, -1, INBOX_MARKER);
+            blogs.forEach((blogId, timestamp) -> stringRedisConnection.zAdd(key, timestamp, blogId.toString()));
+            stringRedisConnection.zRemRange(key, 0, -inboxMaxSize - 1);
+            stringRedisConnection.expire(key, TimeUnit.DAYS.toSeconds(inboxTtlDays));
+            return null;
+        });
+    }
+
+    /**
+     * 大V发布博客，只写入自己的发件箱，并标记为大V
+     */
+    public void pushToOutbox(Long authorId, Long blogId, long timestamp) {
+        String key = RedisConstants.FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            stringRedisConnection.zAdd(key, timestamp, blogId.toString());
+            stringRedisConnection.zRemRange(key, 0, -outboxMaxSize - 1);
+            stringRedisConnection.sAdd(RedisConstants.FEED_BIG_AUTHOR_KEY, authorId.toString());
+            return null;
+        });
+    }
+
+    /**
+     * 所有大V的id，大V的数量很少
+     */
+    public Set<Long> bigAuthors() {
+        Set<String> members = stringRedisTemplate.opsForSet().members(RedisConstants.FEED_BIG_AUTHOR_KEY);
+        if (members == null || members.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return members.stream().map(Long::valueOf).collect(Collectors.toSet());
+    }
+
+    /**
+     * 滚动分页读取收件箱和大V发件箱合并后的feed流
+     * 每个来源最多取 offset + count 条，再按时间戳多路归并；
+     * 时间戳相同的按博客id倒序，保证翻页时跳过的offset条和上一页返回的是同一批数据
+     *
+     * @param inboxKey    收件箱
+     * @param outboxKeys  关注的大V的发件箱
+     * @param max         上一页最小的时间戳，第一页为当前时间
+     * @param offset      上一页中和最小时间戳相同的条数，需要跳过
+     * @param count       每页条数
+     */
+    @SuppressWarnings("unchecked")
+    public List<ZSetOperations.TypedTuple<String>> readFeed(String inboxKey, Collection<String> outboxKeys,
+                                                            long max, int offset, int count) {
+        List<String> keys = new ArrayList<>(outboxKeys.size() + 1);
+        keys.add(inboxKey);
+        keys.addAll(outboxKeys);
+        // 1.一次pipeline查询所有来源
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (String key : keys) {
+                stringRedisConnection.zRevRangeByScoreWithScores(key, 0, max, 0, offset + count);
+            }
+            return null;
+        });
+
+        // 2.多路归并，每个来源已经按时间戳倒序
+        Comparator<ZSetOperations.TypedTuple<String>> order = Comparator
+                .comparing(ZSetOperations.TypedTuple<String>::getScore, Comparator.reverseOrder())
+                .thenComparing(tuple -> Long.valueOf(tuple.getValue()), Comparator.reverseOrder());
+        PriorityQueue<Source> queue = new PriorityQueue<>((a, b) -> order.compare(a.head, b.head));
+        for (Object result : results) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) result;
+            if (tuples != null && !tuples.isEmpty()) {
+                Iterator<ZSetOperations.TypedTuple<String>> iterator = tuples.iterator();
+                queue.add(new Source(iterator.next(), iterator));
+            }
+        }
+
+        // 3.跳过上一页已经返回的offset条，再取count条
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        int skipped = 0;
+        while (!queue.isEmpty() && page.size() < count) {
+            Source source = queue.poll();
+            ZSetOperations.TypedTuple<String> tuple = source.head;
+            if (source.iterator.hasNext()) {
+                source.head = source.iterator.next();
+                queue.add(source);
+            }
+            if (skipped < offset && tuple.getScore().longValue() == max) {
+                skipped++;
+                continue;
+            }
+            page.add(tuple);
+        }
+        return page;
+    }
+
+    private static class Source {
+        private ZSetOperations.TypedTuple<String> head;
+        private final Iterator<ZSetOperations.TypedTuple<String>> iterator;
+
+        Source(ZSetOperations.TypedTuple<String> head, Iterator<ZSetOperations.TypedTuple<String>> iterator) {
+            this.head = head;
+            this.iterator = iterator;
+        }
+    }
+}
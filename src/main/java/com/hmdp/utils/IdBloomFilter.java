@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * 基于本地位数组的布隆过滤器，用于判断id是否可能存在
+ * 判断不存在时一定不存在，判断存在时有fpp的概率误判
+ */
+public class IdBloomFilter {
+
+    /**
+     * 重建时预留的容量倍数，下一次重建之前新增的数据不会让误判率明显上升
+     */
+    private static final int CAPACITY_FACTOR = 2;
+
+    private final long minCapacity;
+    private final double fpp;
+
+    private volatile BitArray bits;
+
+    /**
+     * 第一次加载完成之前，所有id都当作可能存在
+     */
+    private volatile boolean ready;
+
+    private final Object rebuildLock = new Object();
+
+    /**
+     * 重建期间新增的id，重建完成时补充到新的位数组中；不在重建时为null
+     */
+    private List<Long> pendingIds;
+
+    public IdBloomFilter(long minCapacity, double fpp) {
+        this.minCapacity = minCapacity;
+        this.fpp = fpp;
+        this.bits = new BitArray(minCapacity, fpp);
+    }
+
+    /**
+     * 新增数据很少，直接加锁，保证和重建时替换位数组互斥
+     */
+    public synchronized void add(long id) {
+        bits.put(id);
+        if (pendingIds != null) {
+            pendingIds.add(id);
+        }
+    }
+
+    public boolean mightContain(long id) {
+        return !ready || bits.mightContain(id);
+    }
+
+    /**
+     * 重建过滤器，按当前的数据量重新计算位数组大小，同时清除已经删除的id
+     * 必须先开始记录新增的id，再去查询数据库，这样查询之后新增的id也不会丢失
+     */
+    public void rebuild(Supplier<? extends Collection<Long>> idLoader) {
+        synchronized (rebuildLock) {
+            synchronized (this) {
+                pendingIds = new ArrayList<>();
+            }
+            try {
+                Collection<Long> ids = idLoader.get();
+                BitArray b = new BitArray(Math.max(minCapacity, (long) ids.size() * CAPACITY_FACTOR), fpp);
+                for (Long id : ids) {
+                    b.put(id);
+                }
+                synchronized (this) {
+                    for (Long id : pendingIds) {
+                        b.put(id);
+                    }
+                    bits = b;
+                    ready = true;
+                }
+            } finally {
+                synchronized (this) {
+                    pendingIds = null;
+                }
+            }
+        }
+    }
+
+    private static class BitArray {
+        private final AtomicLongArray data;
+        private final long bitSize;
+        private final int hashCount;
+
+        BitArray(long expectedInsertions, double fpp) {
+            long n = Math.max(expectedInsertions, 1);
+            // m = -n * ln(p) / (ln2)^2, k = m / n * ln2
+            long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+            this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+            this.data = new AtomicLongArray((int) (bitSize / 64));
+        }
+
+        void put(long id) {
+            long h1 = mix(id);
+            long h2 = mix(h1);
+            for (int i = 0; i < hashCount; i++) {
+                long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+                int slot = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old;
+                do {
+                    old = data.get(slot);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!data.compareAndSet(slot, old, old | mask));
+            }
+        }
+
+        boolean mightContain(long id) {
+            long h1 = mix(id);
+            long h2 = mix(h1);
+            for (int i = 0; i < hashCount; i++) {
+                long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+                if ((data.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * SplitMix64的混淆函数，把连续的id打散
+         */
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内的本地缓存，按数量（LRU）和过期时间淘汰
+ * 按key的hash分成多个段，每个段单独加锁，减少并发读写时的锁竞争
+ */
+public class LocalCache<V> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final long ttlMillis;
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public LocalCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.segments = new Segment[SEGMENT_COUNT];
+        int segmentSize = Math.max(1, maxSize / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(segmentSize);
+        }
+    }
+
+    public V get(String key) {
+        return segmentFor(key).get(key);
+    }
+
+    public void put(String key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * 写入缓存，过期时间不会超过本地缓存统一的过期时间
+     */
+    public void put(String key, V value, long ttlMillis) {
+        long ttl = Math.min(ttlMillis, this.ttlMillis);
+        if (ttl <= 0) {
+            return;
+        }
+        segmentFor(key).put(key, value, System.currentTimeMillis() + ttl);
+    }
+
+    public void remove(String key) {
+        segmentFor(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment<V> segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENT_COUNT - 1)];
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expireAt;
+
+        Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static class Segment<V> {
+        private final Map<String, Entry<V>> map;
+
+        Segment(int maxSize) {
+            // accessOrder = true，按访问顺序排序，超过容量时淘汰最久没有访问的数据
+            this.map = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized V get(String key) {
+            Entry<V> entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAt < System.currentTimeMillis()) {
+                map.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(String key, V value, long expireAt) {
+            map.put(key, new Entry<>(value, expireAt));
+        }
+
+        synchronized void remove(String key) {
+            map.remove(key);
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
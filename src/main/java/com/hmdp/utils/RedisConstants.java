@@ -5,19 +5,123 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 5L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 300L;
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoked:add";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shoptype:";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_COMMENTS_KEY = "cache:comments:";
+    public static final Long CACHE_COMMENTS_TTL = 10L;
+    public static final String CACHE_COMMENT_KEY = "cache:comment:";
+    public static final Long CACHE_COMMENT_TTL = 30L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
+
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_FILTER_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_FILTER_ADDED_KEY = "bloom:added:";
+    public static final Long CACHE_LOAD_WAIT = 1000L;
+    public static final Long CACHE_REBUILD_WAIT = 200L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order";
+    public static final String SECKILL_ORDER_BITS_KEY = "seckill:order:bits:";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_STREAMS_KEY = "stream.orders:keys";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 30L;
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_BITS_KEY = "blog:liked:bits:";
+    public static final String BLOG_LIKED_RECENT_KEY = "blog:liked:recent:";
+    /**
+     * 位图布局下最近点赞用户最多保留的数量
+     */
+    public static final int BLOG_LIKED_RECENT_MAX_SIZE = 100;
+    /**
+     * 点赞位图按用户id分段，每段2^15个用户，最多4KB，用户id很大而点赞很少时不会分配很大的位图
+     */
+    public static final int BLOG_LIKED_BITS_SHIFT = 15;
+    /**
+     * 点赞记录开始迁移到位图布局的标记，存在时zset布局的点赞脚本同时修改位图
+     */
+    public static final String BLOG_LIKED_MIGRATED_KEY = "layout:migrated:blog-liked";
+    public static final String BLOG_LIKED_COUNT_KEY = "blog:likes:count";
+    public static final String BLOG_LIKED_DIRTY_KEY = "blog:likes:dirty";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_TRENDING_KEY = "blog:trending";
+    public static final String BLOG_COMMENTS_COUNT_KEY = "blog:comments:count";
+    public static final String BLOG_COMMENTS_DIRTY_KEY = "blog:comments:dirty";
+    public static final String COMMENT_LIKED_KEY = "comment:liked:";
+    public static final String COMMENT_LIKED_COUNT_KEY = "comment:likes:count";
+    public static final String COMMENT_LIKED_DIRTY_KEY = "comment:likes:dirty";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big:authors";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String USER_SIGN_DIRTY_KEY = "sign:dirty:";
+    public static final String UV_KEY = "uv:";
+
+    /**
+     * 分段库存key，使用hash tag让同一个分段的库存和订单集合落在同一个slot
+     */
+    public static String seckillStockSegmentKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段订单key，与分段库存key在同一个slot
+     */
+    public static String seckillOrderSegmentKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + ":{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 位图布局的分段订单key，与分段库存key在同一个slot
+     */
+    public static String seckillOrderBitsSegmentKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_BITS_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段订单消息队列key，与分段库存key在同一个slot，lua脚本可以在同一个节点上写入
+     */
+    public static String seckillOrderStreamSegmentKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_STREAM_KEY + ":{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 位图布局的点赞key，用户id所在的分段
+     */
+    public static String blogLikedBitsKey(Long blogId, Long userId) {
+        return BLOG_LIKED_BITS_KEY + blogId + ":" + (userId >> BLOG_LIKED_BITS_SHIFT);
+    }
+
+    /**
+     * 用户在点赞位图分段中的偏移量
+     */
+    public static long blogLikedBitOffset(Long userId) {
+        return userId & ((1L << BLOG_LIKED_BITS_SHIFT) - 1);
+    }
+
+    /**
+     * UV统计的HLL key，统计对象放在hash tag中，同一个对象不同日期的key在同一个slot，可以PFMERGE
+     */
+    public static String uvKey(String scope, String day) {
+        return UV_KEY + "{" + scope + "}:" + day;
+    }
 }
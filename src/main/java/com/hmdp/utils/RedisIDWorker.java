@@ -1,13 +1,29 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局唯一ID生成器，三种模式：
+ * incr 每个ID执行一次 INCR incr:KeyPrefix:today；lease 每次INCRBY租用一段序列号在本地分配，
+ * 这两种模式的ID是 高32位秒级时间戳 + 低32位序列号，时间戳不超过2^30（2056年），第62位一定是0；
+ * snowflake 雪花算法本地生成，第62位固定为1（见SnowflakeIdWorker），两种布局的ID范围不重叠，
+ * 从incr/lease切换到snowflake后ID不会重复也不会变小；从snowflake切回incr/lease时ID不会重复，但会变小
+ */
+@Slf4j
 @Component
 public class RedisIDWorker {
     @Resource
@@ -23,6 +39,43 @@ public class RedisIDWorker {
      */
     private final Integer COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * ID生成方式：incr 每个ID都INCR一次；lease 每次INCRBY租用一段序列号，在本地分配；
+     * snowflake 雪花算法，完全在本地生成
+     */
+    @Value("${id.worker.mode:incr}")
+    private String mode;
+
+    /**
+     * lease模式下每次租用的序列号个数
+     */
+    @Value("${id.worker.lease-step:1000}")
+    private Integer leaseStep;
+
+    /**
+     * 每个业务前缀的号段缓冲
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    @PostConstruct
+    private void init() {
+        if ("snowflake".equals(mode)) {
+            snowflakeIdWorker = new SnowflakeIdWorker(stringRedisTemplate);
+            snowflakeIdWorker.start();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (snowflakeIdWorker != null) {
+            snowflakeIdWorker.stop();
+        }
+    }
+
     /**
      * 获得全局唯一ID
      * 64位长度的ID，高32位表示时间戳，低32位表示序列号
@@ -31,17 +84,105 @@ public class RedisIDWorker {
      * 这样序列号就是递增的，同时时间戳也是递增的，就可以保证整体的递增性
      */
     public Long getId(String keyPrefix){
+        // 雪花算法不区分业务，所有业务共用一个生成器
+        if (snowflakeIdWorker != null) {
+            return snowflakeIdWorker.nextId();
+        }
         // 获得时间戳
         LocalDateTime now = LocalDateTime.now();
         long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
 
         // 获得序列号
-        String day = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        Long increment = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + day);
+        String day = now.format(DAY_FORMATTER);
+        long increment;
+        if ("lease".equals(mode)) {
+            increment = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day);
+        } else {
+            increment = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + day);
+        }
 
         // 拼接成唯一ID
         return timestamp << COUNT_BITS | increment;
     }
 
+    /**
+     * 向Redis租用一段序列号 INCRBY incr:KeyPrefix:today step
+     * 租到的号段为 [end - step + 1, end]，各个节点租到的号段互不重叠
+     */
+    private Segment lease(String keyPrefix, String day) {
+        Long end = stringRedisTemplate.opsForValue().increment("incr:" + keyPrefix + ":" + day, leaseStep);
+        return new Segment(day, end - leaseStep + 1, end);
+    }
+
+    /**
+     * 一段租用的序列号，序列号只在租用的那一天有效，跨天必须重新租用
+     */
+    private static class Segment {
+        private final String day;
+        private final long end;
+        private final AtomicLong cursor;
+
+        Segment(String day, long start, long end) {
+            this.day = day;
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+        }
+    }
 
+    /**
+     * 双号段缓冲：当前号段无锁分配，剩余不足20%时异步预取下一个号段，用完后直接切换
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(String day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day.equals(day)) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.end) {
+                        // 每个序列号只会被取到一次，所以预取只会触发一次
+                        if (segment.end - value == leaseStep / 5) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                // 当前号段用完或者跨天了，切换号段
+                synchronized (this) {
+                    if (current == segment) {
+                        current = takeNext(day);
+                    }
+                }
+            }
+        }
+
+        private synchronized void prefetch(String day) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, day), ThreadPoolUtil.getThreadPool());
+            }
+        }
+
+        private Segment takeNext(String day) {
+            CompletableFuture<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    Segment segment = future.join();
+                    if (segment.day.equals(day)) {
+                        return segment;
+                    }
+                } catch (Exception e) {
+                    log.error("预取号段失败，同步重新租用，keyPrefix：{}", keyPrefix, e);
+                }
+            }
+            return lease(keyPrefix, day);
+        }
+    }
 }
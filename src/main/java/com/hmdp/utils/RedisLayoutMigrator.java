@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.NumberUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 点赞记录、已下单用户从集合布局迁移到位图布局的工具
+ * 配置layout.migrate-on-start=true时，项目启动后由一个节点在分布式锁内执行迁移
+ * 点赞记录：必须在layout.blog-liked=zset时迁移。迁移开始时写入标记，之后zset布局的点赞脚本同时修改位图，
+ * 迁移和切换配置之间的点赞、取消点赞都会写入位图；每个博客先删除位图布局的旧数据再按zset重新写入，重复迁移的结果和zset一致。
+ * 切换到位图布局后zset不再更新，不能再迁移
+ * 已下单用户：只会增加不会减少，重复迁移只会补上新的用户，切换到位图布局之后再迁移一次，补上切换之前写入set的用户
+ */
+@Slf4j
+@Component
+public class RedisLayoutMigrator {
+
+    /**
+     * 每次SCAN、ZSCAN、SSCAN处理的数量，一批用一个pipeline或者一次脚本写入
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String MIGRATE_LOCK = "layout:migrate";
+    /**
+     * 迁移大量数据需要较长时间，锁的有效期要足够长
+     */
+    private static final Long MIGRATE_LOCK_TTL = 3600L;
+
+    private static final DefaultRedisScript<Long> LIKE_MIGRATE_SCRIPT;
+
+    static {
+        LIKE_MIGRATE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_MIGRATE_SCRIPT.setLocation(new ClassPathResource("like_migrate.lua"));
+        LIKE_MIGRATE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${layout.blog-liked:zset}")
+    private String likedLayout;
+
+    @Value("${layout.migrate-on-start:false}")
+    private Boolean migrateOnStart;
+
+    /**
+     * 项目启动后执行迁移，多个节点同时启动时只有拿到锁的节点迁移
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateOnStart() {
+        if (!BooleanUtil.isTrue(migrateOnStart)) {
+            return;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, MIGRATE_LOCK);
+        if (!lock.tryLock(MIGRATE_LOCK_TTL)) {
+            log.info("其他节点正在迁移Redis布局");
+            return;
+        }
+        try {
+            if (!isBitmapLayout()) {
+                migrateBlogLiked(RedisConstants.BLOG_LIKED_RECENT_MAX_SIZE);
+            }
+            migrateSeckillOrders(false);
+        } catch (Exception e) {
+            log.error("迁移Redis布局失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 迁移所有博客的点赞记录，旧的zset保留，所有节点切换到位图布局之后再删除
+     * @param recentMaxSize 最近点赞用户最多保留的数量
+     * @return 迁移的博客数量
+     */
+    public int migrateBlogLiked(int recentMaxSize) {
+        if (isBitmapLayout()) {
+            log.warn("已经切换到位图布局，zset中的点赞记录不再更新，不能迁移");
+            return 0;
+        }
+        // 先写入标记，之后的点赞、取消点赞同时修改位图
+        stringRedisTemplate.opsForValue().set(RedisConstants.BLOG_LIKED_MIGRATED_KEY, String.valueOf(System.currentTimeMillis()));
+        int migrated = 0;
+        for (String key : scanKeys(RedisConstants.BLOG_LIKED_KEY + "*")) {
+            // 跳过位图、最近点赞用户等其他key
+            String blogId = key.substring(RedisConstants.BLOG_LIKED_KEY.length());
+            if (!NumberUtil.isLong(blogId)) {
+                continue;
+            }
+            migrateBlogLiked(Long.valueOf(blogId), recentMaxSize);
+            migrated++;
+        }
+        log.info("点赞记录迁移完成，共{}个博客", migrated);
+        return migrated;
+    }
+
+    /**
+     * 迁移一个博客的点赞记录：所有点赞用户写入位图，最近点赞的用户写入有上限的zset，并补齐点赞数
+     * 先删除位图布局的旧数据，上一次迁移之后取消点赞的用户不会留在位图中；
+     * ZSCAN保证迁移期间一直在zset中的用户都会被复制，迁移期间的变化由点赞脚本同时写入位图
+     */
+    public void migrateBlogLiked(Long blogId, int recentMaxSize) {
+        if (isBitmapLayout()) {
+            log.warn("已经切换到位图布局，zset中的点赞记录不再更新，不能迁移");
+            return;
+        }
+        stringRedisTemplate.opsForValue().set(RedisConstants.BLOG_LIKED_MIGRATED_KEY, String.valueOf(System.currentTimeMillis()));
+        String key = RedisConstants.BLOG_LIKED_KEY + blogId;
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        if (size == null || size == 0) {
+            return;
+        }
+        // 1.删除位图布局的旧数据
+        String recentKey = RedisConstants.BLOG_LIKED_RECENT_KEY + blogId;
+        List<String> oldKeys = scanKeys(RedisConstants.BLOG_LIKED_BITS_KEY + blogId + ":*");
+        oldKeys.add(recentKey);
+        stringRedisTemplate.delete(oldKeys);
+        // 2.分批写入位图和最近点赞的用户
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try (Cursor<ZSetOperations.TypedTuple<String>> cursor = stringRedisTemplate.opsForZSet()
+                .scan(key, ScanOptions.scanOptions().count(BATCH_SIZE).build())) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next().getValue());
+                if (batch.size() == BATCH_SIZE) {
+                    copyLiked(blogId, batch, recentMaxSize);
+                    batch.clear();
+                }
+            }
+        }
+        copyLiked(blogId, batch, recentMaxSize);
+        // 3.补齐点赞数
+        stringRedisTemplate.opsForHash().putIfAbsent(RedisConstants.BLOG_LIKED_COUNT_KEY, blogId.toString(), size.toString());
+    }
+
+    private void copyLiked(Long blogId, List<String> userIds, int recentMaxSize) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(userIds.size() + 2);
+        keys.add(RedisConstants.BLOG_LIKED_KEY + blogId);
+        keys.add(RedisConstants.BLOG_LIKED_RECENT_KEY + blogId);
+        List<String> args = new ArrayList<>(userIds.size() * 2 + 1);
+        args.add(String.valueOf(recentMaxSize));
+        for (String userId : userIds) {
+            Long id = Long.valueOf(userId);
+            keys.add(RedisConstants.blogLikedBitsKey(blogId, id));
+            args.add(userId);
+            args.add(String.valueOf(RedisConstants.blogLikedBitOffset(id)));
+        }
+        stringRedisTemplate.execute(LIKE_MIGRATE_SCRIPT, keys, args.toArray());
+    }
+
+    private boolean isBitmapLayout() {
+        return "bitmap".equals(likedLayout);
+    }
+
+    /**
+     * 迁移所有优惠券的已下单用户，包括分段库存的订单集合
+     * seckill:order{voucherId} -> seckill:order:bits:{voucherId}
+     * seckill:order:{voucherId:segment} -> seckill:order:bits:{voucherId:segment}
+     * @return 迁移的key数量
+     */
+    public int migrateSeckillOrders(boolean deleteOld) {
+        int migrated = 0;
+        for (String key : scanKeys(RedisConstants.SECKILL_ORDER_KEY + "*")) {
+            if (key.startsWith(RedisConstants.SECKILL_ORDER_BITS_KEY)) {
+                continue;
+            }
+            String suffix = key.substring(RedisConstants.SECKILL_ORDER_KEY.length());
+            String bitsKey;
+            if (suffix.startsWith(":{")) {
+                bitsKey = RedisConstants.SECKILL_ORDER_BITS_KEY + suffix.substring(1);
+            } else if (NumberUtil.isLong(suffix)) {
+                bitsKey = RedisConstants.SECKILL_ORDER_BITS_KEY + suffix;
+            } else {
+                continue;
+            }
+            migrateSet(key, bitsKey);
+            if (deleteOld) {
+                stringRedisTemplate.delete(key);
+            }
+            migrated++;
+        }
+        log.info("已下单用户迁移完成，共{}个key", migrated);
+        return migrated;
+    }
+
+    /**
+     * 把用户id集合写入以用户id为偏移量的位图
+     */
+    public void migrateSet(String setKey, String bitsKey) {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(setKey, ScanOptions.scanOptions().count(BATCH_SIZE).build())) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == BATCH_SIZE) {
+                    setBits(bitsKey, batch);
+                    batch.clear();
+                }
+            }
+        }
+        setBits(bitsKey, batch);
+    }
+
+    private void setBits(String bitsKey, List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (String userId : userIds) {
+                stringRedisConnection.setBit(bitsKey, Long.parseLong(userId), true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 用SCAN查询匹配的key，不会像KEYS一样阻塞Redis
+     */
+    public List<String> scanKeys(String pattern) {
+        List<String> keys = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().match(pattern).count(BATCH_SIZE).build())) {
+                while (cursor.hasNext()) {
+                    keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        return keys;
+    }
+
+    /**
+     * MEMORY USAGE统计一批key占用的内存，单位字节
+     */
+    public long memoryUsage(Collection<String> keys) {
+        long total = 0;
+        for (String key : keys) {
+            Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8)));
+            if (usage instanceof Long) {
+                total += (Long) usage;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 无状态的签名token：token中携带用户id、昵称、头像和过期时间，用HMAC-SHA256签名，校验时不需要访问Redis
+ * 格式为 base64url(载荷).base64url(签名)，载荷是二进制编码的 版本、tokenId、过期时间、用户id、昵称、头像
+ * 剩余有效期低于阈值时签发新token（tokenId不变），实现滑动过期；
+ * 登出时把tokenId加入Redis的吊销集合，每个节点用本地布隆过滤器快照判断，只有可能被吊销的token才查询Redis
+ */
+@Slf4j
+@Component
+public class SignedTokenClient {
+
+    private static final byte VERSION = 1;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * 密钥的最小长度，不短于HMAC-SHA256的输出长度
+     */
+    private static final int MIN_SECRET_BYTES = 32;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /**
+     * 吊销集合布隆过滤器的最小容量和误判率
+     */
+    private static final long REVOKED_MIN_CAPACITY = 10000L;
+    private static final double REVOKED_FPP = 0.001;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * token模式：redis 随机token，用户信息保存在Redis；signed 签名token
+     */
+    @Value("${token.mode:redis}")
+    private String mode;
+
+    /**
+     * 签名密钥，多个节点必须相同；由环境变量提供，配置文件中不保存密钥
+     */
+    @Value("${token.secret:}")
+    private String secret;
+
+    /**
+     * 签名token剩余有效期低于这个值时签发新token
+     */
+    @Value("${token.refresh-threshold-minutes:240}")
+    private Long renewThresholdMinutes;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Mac不是线程安全的，每个线程一个
+     */
+    private ThreadLocal<Mac> macs;
+
+    private final IdBloomFilter revokedFilter = new IdBloomFilter(REVOKED_MIN_CAPACITY, REVOKED_FPP);
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (StrUtil.isBlank(secret) || secret.getBytes(StandardCharsets.UTF_8).length < MIN_SECRET_BYTES) {
+            throw new IllegalStateException("signed token模式必须配置至少" + MIN_SECRET_BYTES + "字节的token.secret");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // 订阅其他节点吊销token的通知，加入本地布隆过滤器
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> revokedFilter.add(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.LOGIN_REVOKED_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return "signed".equals(mode);
+    }
+
+    /**
+     * 登录时签发新token
+     */
+    public String issue(UserDTO user) {
+        return sign(random.nextLong(), expireAt(), user);
+    }
+
+    /**
+     * 校验签名、过期时间和吊销集合，返回token中的信息，无效时返回null
+     */
+    public Claims parse(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, macs.get().doFinal(payload))) {
+            return null;
+        }
+        Claims claims;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            claims = new Claims();
+            claims.setTokenId(in.readLong());
+            claims.setExpireAt(in.readLong());
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(readNullableUTF(in));
+            user.setIcon(readNullableUTF(in));
+            claims.setUser(user);
+        } catch (IOException e) {
+            return null;
+        }
+        if (claims.getExpireAt() < System.currentTimeMillis() || isRevoked(claims.getTokenId())) {
+            return null;
+        }
+        return claims;
+    }
+
+    /**
+     * 剩余有效期是否低于阈值，需要签发新token
+     */
+    public boolean needRenew(Claims claims) {
+        return claims.getExpireAt() - System.currentTimeMillis() < TimeUnit.MINUTES.toMillis(renewThresholdMinutes);
+    }
+
+    /**
+     * 用最新的用户信息签发新token，tokenId不变，登出时新旧token一起失效
+     */
+    public String renew(Claims claims, UserDTO latest) {
+        return sign(claims.getTokenId(), expireAt(), latest);
+    }
+
+    /**
+     * 吊销token：加入Redis的吊销集合（score为同一个tokenId的token最晚的过期时间），通知所有节点加入本地布隆过滤器
+     */
+    public void revoke(String token) {
+        Claims claims = parse(token);
+        if (claims == null) {
+            return;
+        }
+        String tokenId = String.valueOf(claims.getTokenId());
+        stringRedisTemplate.opsForZSet().add(RedisConstants.LOGIN_REVOKED_KEY, tokenId, expireAt());
+        revokedFilter.add(claims.getTokenId());
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_REVOKED_CHANNEL, tokenId);
+    }
+
+    /**
+     * 布隆过滤器判断不可能被吊销时不访问Redis，可能被吊销时再查询吊销集合
+     */
+    private boolean isRevoked(long tokenId) {
+        if (!revokedFilter.mightContain(tokenId)) {
+            return false;
+        }
+        return stringRedisTemplate.opsForZSet().score(RedisConstants.LOGIN_REVOKED_KEY, String.valueOf(tokenId)) != null;
+    }
+
+    /**
+     * 启动时加载吊销集合，之后定时删除已经过期的吊销记录并重建布隆过滤器
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelay = 60000)
+    public void rebuildRevoked() {
+        if (!isEnabled()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.LOGIN_REVOKED_KEY, 0, System.currentTimeMillis());
+        revokedFilter.rebuild(() -> {
+            Set<String> tokenIds = stringRedisTemplate.opsForZSet().range(RedisConstants.LOGIN_REVOKED_KEY, 0, -1);
+            return tokenIds == null ? Collections.<Long>emptyList()
+                    : tokenIds.stream().map(Long::valueOf).collect(Collectors.toList());
+        });
+    }
+
+    private String sign(long tokenId, long expireAt, UserDTO user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(tokenId);
+            out.writeLong(expireAt);
+            out.writeLong(user.getId());
+            writeNullableUTF(out, user.getNickName());
+            writeNullableUTF(out, user.getIcon());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(macs.get().doFinal(payload));
+    }
+
+    private static long expireAt() {
+        return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL);
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * 签名token中的信息
+     */
+    @Data
+    public static class Claims {
+        private Long tokenId;
+        /**
+         * 过期时间，毫秒
+         */
+        private Long expireAt;
+        private UserDTO user;
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 雪花算法ID生成器，ID完全在本地生成，不需要访问Redis
+ * 64位ID：1位符号位 + 1位模式位（固定为1） + 40位毫秒时间戳 + 10位workerId + 12位序列号
+ * INCR/号段模式的ID是 秒级时间戳 << 32，2056年之前第62位都是0，模式位保证两种模式的ID范围不重叠，
+ * 从INCR模式切换到雪花模式后ID只增不减，也不会和已经生成的订单ID重复
+ * workerId启动时从Redis租用（SET id:worker:n token NX EX 30），并定时续约，保证同一时刻不会有两个节点使用相同的workerId
+ */
+@Slf4j
+public class SnowflakeIdWorker {
+
+    /**
+     * 初始时间戳 2022-01-01 00:00:00，单位毫秒
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+
+    private static final long TIMESTAMP_BITS = 40L;
+    private static final long WORKER_ID_BITS = 10L;
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+
+    /**
+     * 模式位，第62位
+     */
+    private static final long MODE_BIT = 1L << (TIMESTAMP_BITS + WORKER_ID_BITS + SEQUENCE_BITS);
+
+    /**
+     * 可以容忍的时钟回拨毫秒数，回拨在这个范围内就等待时钟追上，超过就拒绝生成ID
+     */
+    private static final long MAX_BACKWARD_MS = 5L;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 节点标识，用于判断workerId的租约是否属于自己
+     */
+    private final String token = UUID.randomUUID().toString(true);
+
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile long workerId = -1;
+
+    /**
+     * 租约的本地过期时间，续约失败时不能继续使用这个workerId，否则租约过期后可能被其他节点拿走
+     */
+    private volatile long leaseExpireAt;
+
+    private long lastTimestamp = -1L;
+    private long sequence = 0L;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 租用workerId并启动心跳续约，每1/3个租约时长续约一次
+     */
+    public void start() {
+        acquireWorkerId();
+        long period = RedisConstants.ID_WORKER_TTL / 3;
+        heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止心跳并释放workerId
+     */
+    public void stop() {
+        heartbeat.shutdownNow();
+        if (workerId >= 0) {
+            // 复用释放锁的脚本，只删除属于自己的租约
+            DefaultRedisScript<Long> unlockScript = new DefaultRedisScript<>();
+            unlockScript.setLocation(new ClassPathResource("unlock.lua"));
+            unlockScript.setResultType(Long.class);
+            stringRedisTemplate.execute(unlockScript, Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), token);
+        }
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * 生成下一个ID
+     */
+    public synchronized long nextId() {
+        long now = System.currentTimeMillis();
+        if (now > leaseExpireAt) {
+            throw new IllegalStateException("workerId租约已过期，拒绝生成ID");
+        }
+        // 1.时钟回拨
+        if (now < lastTimestamp) {
+            long offset = lastTimestamp - now;
+            if (offset > MAX_BACKWARD_MS) {
+                throw new IllegalStateException("时钟回拨" + offset + "ms，拒绝生成ID");
+            }
+            now = waitUntil(lastTimestamp);
+        }
+        // 2.同一毫秒内序列号自增，序列号用完就等到下一毫秒
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = waitUntil(lastTimestamp + 1);
+            }
+        } else {
+            sequence = 0L;
+        }
+        lastTimestamp = now;
+
+        // 3.拼接ID，40位时间戳可以用到2056年
+        long timestamp = now - BEGIN_TIMESTAMP;
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("时间戳超出范围，拒绝生成ID");
+        }
+        return MODE_BIT
+                | timestamp << (WORKER_ID_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private long waitUntil(long timestamp) {
+        long now = System.currentTimeMillis();
+        while (now < timestamp) {
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+
+    /**
+     * 依次尝试租用 0 ~ 1023 的workerId
+     */
+    private void acquireWorkerId() {
+        for (long id = 0; id <= MAX_WORKER_ID; id++) {
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + id, token, RedisConstants.ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                workerId = id;
+                leaseExpireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RedisConstants.ID_WORKER_TTL);
+                log.info("租用workerId成功：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    private void renew() {
+        try {
+            long start = System.currentTimeMillis();
+            Long res = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId),
+                    token, RedisConstants.ID_WORKER_TTL.toString());
+            if (res != null && res == 1) {
+                leaseExpireAt = start + TimeUnit.SECONDS.toMillis(RedisConstants.ID_WORKER_TTL);
+                return;
+            }
+            // 租约已经丢失（例如Redis故障期间过期），重新租用一个workerId
+            log.warn("workerId {} 的租约已丢失，重新租用", workerId);
+            synchronized (this) {
+                acquireWorkerId();
+            }
+        } catch (Exception e) {
+            log.error("workerId续约失败", e);
+        }
+    }
+}
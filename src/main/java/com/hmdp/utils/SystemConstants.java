@@ -5,4 +5,6 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int LOCAL_CACHE_MAX_SIZE = 10000;
+    public static final long LOCAL_CACHE_TTL = 60 * 1000L;
 }
@@ -0,0 +1,306 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.protocol.ProtocolVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录token的本地缓存：
+ * 本地缓存token对应的用户id和Redis中token的过期时间，命中时不访问Redis；
+ * 剩余有效期低于阈值时才刷新有效期，刷新由定时任务用一个pipeline批量执行；
+ * 本地缓存的失效使用Redis 6的客户端缓存（RESP3 + CLIENT TRACKING）：token通过一个开启了跟踪的专用连接读取，
+ * 之后这个token被任何客户端修改、删除或者过期时，服务端都会在这个连接上推送invalidate消息，本节点删除本地缓存。
+ * 连接断开期间收不到失效通知，所以断开时清空本地缓存，重新开启跟踪之前不使用本地缓存；
+ * Redis版本不支持RESP3时不使用本地缓存，每次都查询Redis
+ */
+@Slf4j
+@Component
+public class TokenClient {
+
+    private static final String INVALIDATE = "invalidate";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisProperties redisProperties;
+
+    /**
+     * token在本地缓存的时间
+     */
+    @Value("${token.local-ttl-seconds:10}")
+    private Long localTtlSeconds;
+
+    /**
+     * 本地缓存的token数量上限
+     */
+    @Value("${token.local-max-size:10000}")
+    private Integer localMaxSize;
+
+    /**
+     * token剩余有效期低于这个值时才刷新有效期
+     */
+    @Value("${token.refresh-threshold-minutes:240}")
+    private Long refreshThresholdMinutes;
+
+    private LocalCache<TokenEntry> localCache;
+
+    /**
+     * 等待刷新有效期的token key
+     */
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 开启了CLIENT TRACKING的专用连接，不支持时为null
+     */
+    private RedisClient trackingClient;
+    private StatefulRedisConnection<String, String> trackingConnection;
+
+    private long commandTimeoutMillis;
+
+    /**
+     * 服务端正在跟踪这个连接读过的key，只有这时才能使用本地缓存
+     */
+    private volatile boolean tracking;
+
+    /**
+     * 正在从Redis读取的token key，读取期间收到失效通知时不写入本地缓存
+     */
+    private final Map<String, Object> loading = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        localCache = new LocalCache<>(localMaxSize, TimeUnit.SECONDS.toMillis(localTtlSeconds));
+        Duration timeout = redisProperties.getTimeout() == null ? Duration.ofSeconds(2) : redisProperties.getTimeout();
+        commandTimeoutMillis = timeout.toMillis();
+        RedisURI.Builder uri = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase())
+                .withTimeout(timeout);
+        if (StrUtil.isNotEmpty(redisProperties.getPassword())) {
+            uri.withPassword(redisProperties.getPassword().toCharArray());
+        }
+        trackingClient = RedisClient.create(uri.build());
+        trackingClient.setOptions(ClientOptions.builder().protocolVersion(ProtocolVersion.RESP3).build());
+        trackingClient.addListener(new RedisConnectionStateListener() {
+            @Override
+            public void onRedisConnected(RedisChannelHandler<?, ?> connection, SocketAddress socketAddress) {
+                // 重连后服务端已经不再跟踪之前读过的key，重新开启跟踪
+                if (trackingConnection != null) {
+                    enableTracking();
+                }
+            }
+
+            @Override
+            public void onRedisDisconnected(RedisChannelHandler<?, ?> connection) {
+                // 断开期间收不到失效通知，停止使用并清空本地缓存
+                tracking = false;
+                localCache.clear();
+            }
+
+            @Override
+            public void onRedisExceptionCaught(RedisChannelHandler<?, ?> connection, Throwable cause) {
+            }
+        });
+        try {
+            StatefulRedisConnection<String, String> connection = trackingClient.connect();
+            connection.addListener(this::onPushMessage);
+            trackingConnection = connection;
+            enableTracking();
+        } catch (Exception e) {
+            // Redis 6以下不支持RESP3和CLIENT TRACKING
+            log.warn("开启CLIENT TRACKING失败，token不使用本地缓存", e);
+            trackingClient.shutdown();
+            trackingClient = null;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (trackingConnection != null) {
+            trackingConnection.close();
+        }
+        if (trackingClient != null) {
+            trackingClient.shutdown();
+        }
+    }
+
+    /**
+     * CLIENT TRACKING ON，开启成功之后才使用本地缓存
+     */
+    private void enableTracking() {
+        trackingConnection.async().clientTracking(TrackingArgs.Builder.enabled()).whenComplete((res, e) -> {
+            if (e != null) {
+                log.error("开启CLIENT TRACKING失败", e);
+                return;
+            }
+            localCache.clear();
+            tracking = true;
+        });
+    }
+
+    /**
+     * 服务端推送的失效通知：>2 invalidate [key1, key2 ...]，FLUSHDB/FLUSHALL时key列表为null
+     */
+    private void onPushMessage(PushMessage message) {
+        if (!INVALIDATE.equals(message.getType())) {
+            return;
+        }
+        List<Object> content = message.getContent(StringCodec.UTF8::decodeKey);
+        Object keys = content.size() > 1 ? content.get(1) : null;
+        if (!(keys instanceof List)) {
+            localCache.clear();
+            loading.clear();
+            return;
+        }
+        for (Object key : (List<?>) keys) {
+            localCache.remove(key.toString());
+            loading.remove(key.toString());
+        }
+    }
+
+    /**
+     * 查询token对应的用户id，token不存在或已过期时返回null
+     * 本地缓存未命中时用一个pipeline查询用户id和剩余有效期
+     */
+    public Long getUserId(String token) {
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        long now = System.currentTimeMillis();
+        TokenEntry entry = tracking ? localCache.get(key) : null;
+        if (entry == null) {
+            entry = load(key, now);
+            if (entry == null) {
+                return null;
+            }
+        }
+        // 剩余有效期低于阈值时刷新，先修改本地记录的过期时间，避免同一个token重复刷新
+        if (entry.expireAt - now < TimeUnit.MINUTES.toMillis(refreshThresholdMinutes)) {
+            entry.expireAt = now + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL);
+            pendingRefresh.add(key);
+        }
+        return entry.userId;
+    }
+
+    /**
+     * 从Redis查询token，通过跟踪连接读取时服务端会记住这个key，之后的修改会推送失效通知
+     */
+    private TokenEntry load(String key, long now) {
+        if (trackingConnection == null) {
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                stringRedisConnection.hGet(key, "id");
+                stringRedisConnection.pTtl(key);
+                return null;
+            });
+            return toEntry(results.get(0), (Long) results.get(1), now);
+        }
+        Object marker = new Object();
+        loading.put(key, marker);
+        try {
+            // 两个命令在同一个连接上连续发送，和pipeline一样只有一次往返
+            RedisAsyncCommands<String, String> commands = trackingConnection.async();
+            RedisFuture<String> userIdFuture = commands.hget(key, "id");
+            RedisFuture<Long> pttlFuture = commands.pttl(key);
+            String userId = LettuceFutures.awaitOrCancel(userIdFuture, commandTimeoutMillis, TimeUnit.MILLISECONDS);
+            Long pttl = LettuceFutures.awaitOrCancel(pttlFuture, commandTimeoutMillis, TimeUnit.MILLISECONDS);
+            TokenEntry entry = toEntry(userId, pttl, now);
+            // 读取期间没有收到失效通知，才能写入本地缓存
+            if (entry != null && tracking && loading.remove(key, marker)) {
+                localCache.put(key, entry);
+            }
+            return entry;
+        } finally {
+            loading.remove(key, marker);
+        }
+    }
+
+    /**
+     * 没有设置过期时间（-1）的token当作马上过期，会刷新有效期
+     */
+    private static TokenEntry toEntry(Object userId, Long pttl, long now) {
+        if (userId == null) {
+            return null;
+        }
+        return new TokenEntry(Long.valueOf(userId.toString()), now + Math.max(0, pttl == null ? 0 : pttl));
+    }
+
+    /**
+     * 删除token，其他节点由服务端推送的失效通知删除本地缓存
+     */
+    public void remove(String token) {
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        stringRedisTemplate.delete(key);
+        localCache.remove(key);
+        pendingRefresh.remove(key);
+    }
+
+    /**
+     * 批量刷新token有效期，一次pipeline执行所有等待刷新的EXPIRE
+     * EXPIRE也会触发失效通知，刷新过的token在各节点下次访问时重新读取一次
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void flushRefresh() {
+        if (pendingRefresh.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(pendingRefresh);
+        pendingRefresh.removeAll(keys);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                for (String key : keys) {
+                    stringRedisConnection.expire(key, TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 刷新失败，下次再刷新
+            pendingRefresh.addAll(keys);
+            log.error("刷新token有效期失败", e);
+        }
+    }
+
+    private static class TokenEntry {
+        private final Long userId;
+        /**
+         * Redis中token的过期时间，毫秒
+         */
+        private volatile long expireAt;
+
+        TokenEntry(Long userId, long expireAt) {
+            this.userId = userId;
+            this.expireAt = expireAt;
+        }
+    }
+}
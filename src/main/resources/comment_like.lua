@@ -0,0 +1,39 @@
+-- 点赞、取消点赞评论，同时维护Redis中的点赞数，返回最新的点赞数
+
+-- 点赞用户的set key
+local likedKey = KEYS[1]
+
+-- 评论点赞数hash key，field为评论id
+local countKey = KEYS[2]
+
+-- 点赞数有变化、等待写回数据库的评论id集合
+local dirtyKey = KEYS[3]
+
+-- 评论id
+local commentId = ARGV[1]
+
+-- 用户id
+local userId = ARGV[2]
+
+-- 数据库中的点赞数，第一次使用Redis计数时用它初始化
+local initCount = ARGV[3]
+
+if (redis.call("hexists", countKey, commentId) == 0) then
+    redis.call("hset", countKey, commentId, initCount)
+end
+
+local count
+if (redis.call("sismember", likedKey, userId) == 1) then
+    -- 已经点过赞，取消点赞
+    redis.call("srem", likedKey, userId)
+    count = redis.call("hincrby", countKey, commentId, -1)
+else
+    -- 没有点过赞，点赞
+    redis.call("sadd", likedKey, userId)
+    count = redis.call("hincrby", countKey, commentId, 1)
+end
+
+-- 标记点赞数需要写回数据库
+redis.call("sadd", dirtyKey, commentId)
+
+return count
@@ -0,0 +1,21 @@
+-- 推送博客到一个粉丝的收件箱，并裁剪收件箱的长度
+-- 收件箱不存在（长时间没有读取已经过期）时不推送，粉丝下次读取时会从数据库重建
+
+-- 收件箱key
+local inboxKey = KEYS[1]
+
+-- 博客id
+local blogId = ARGV[1]
+
+-- 发布时间
+local timestamp = ARGV[2]
+
+-- 收件箱最多保留的博客数量
+local maxSize = tonumber(ARGV[3])
+
+if (redis.call("exists", inboxKey) == 0) then
+    return 0
+end
+redis.call("zadd", inboxKey, timestamp, blogId)
+redis.call("zremrangebyrank", inboxKey, 0, -maxSize - 1)
+return 1
@@ -0,0 +1,28 @@
+-- 用重建好的临时排行榜替换热门排行榜
+-- 替换之前用Redis中的点赞数修正临时排行榜的分数：从数据库查询之后新增的点赞只在Redis中，
+-- 和点赞脚本一样在Redis中原子执行，修正和替换之间不会有新的点赞被覆盖
+
+-- 重建的临时排行榜key
+local tmpKey = KEYS[1]
+
+-- 热门排行榜key
+local hotKey = KEYS[2]
+
+-- 点赞数hash key，field为博客id
+local countKey = KEYS[3]
+
+if (redis.call("exists", tmpKey) == 0) then
+    return 0
+end
+
+local blogIds = redis.call("zrange", tmpKey, 0, -1)
+for i = 1, #blogIds do
+    local count = redis.call("hget", countKey, blogIds[i])
+    if (count) then
+        redis.call("zadd", tmpKey, count, blogIds[i])
+    end
+end
+
+redis.call("rename", tmpKey, hotKey)
+
+return #blogIds
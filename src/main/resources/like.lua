@@ -0,0 +1,103 @@
+-- 点赞、取消点赞，同时维护Redis中的点赞数，返回最新的点赞数
+
+-- 点赞用户的zset key
+local likedKey = KEYS[1]
+
+-- 点赞数hash key，field为博客id
+local countKey = KEYS[2]
+
+-- 点赞数有变化、等待写回数据库的博客id集合
+local dirtyKey = KEYS[3]
+
+-- 热门博客排行榜
+local hotKey = KEYS[4]
+
+-- 热度（随时间衰减）排行榜
+local trendingKey = KEYS[5]
+
+-- 位图布局的key：用户id所在分段的点赞位图、最近点赞用户的zset
+local bitsKey = KEYS[6]
+local recentKey = KEYS[7]
+
+-- 点赞记录开始迁移到位图布局的标记，存在时同时修改位图布局的数据，迁移之后的点赞、取消点赞不会丢失
+local migratedKey = KEYS[8]
+
+-- 博客id
+local blogId = ARGV[1]
+
+-- 用户id
+local userId = ARGV[2]
+
+-- 点赞时间
+local now = ARGV[3]
+
+-- 热度分数的初始时间戳T0、衰减时间常数τ（毫秒），点赞权重的对数ln(w)
+local trendingBegin = tonumber(ARGV[4])
+local trendingTau = tonumber(ARGV[5])
+local likeLogWeight = tonumber(ARGV[6])
+
+-- 数据库中的点赞数，第一次使用Redis计数时用它初始化
+-- 点赞用户的zset可能过期或者被删除，它的数量不一定等于点赞数
+local initCount = ARGV[7]
+
+-- 用户在位图分段中的偏移量、最近点赞用户最多保留的数量
+local bitOffset = ARGV[8]
+local recentMaxSize = tonumber(ARGV[9])
+
+if (redis.call("hexists", countKey, blogId) == 0) then
+    redis.call("hset", countKey, blogId, initCount)
+end
+
+-- 热度分数加上或减去一个点赞的权重，逻辑和trending.lua相同
+local function addTrending(likeTime, sign)
+    local logWeight = likeLogWeight + (likeTime - trendingBegin) / trendingTau
+    local old = tonumber(redis.call("zscore", trendingKey, blogId))
+    if (sign > 0) then
+        if (not old) then
+            redis.call("zadd", trendingKey, logWeight, blogId)
+        else
+            local hi = math.max(old, logWeight)
+            local lo = math.min(old, logWeight)
+            redis.call("zadd", trendingKey, hi + math.log(1 + math.exp(lo - hi)), blogId)
+        end
+    elseif (old) then
+        if (logWeight >= old - 1e-9) then
+            redis.call("zrem", trendingKey, blogId)
+        else
+            redis.call("zadd", trendingKey, old + math.log(1 - math.exp(logWeight - old)), blogId)
+        end
+    end
+end
+
+local migrated = redis.call("exists", migratedKey) == 1
+
+local count
+local likeTime = redis.call("zscore", likedKey, userId)
+if (likeTime) then
+    -- 已经点过赞，取消点赞，减去的是当初点赞时加上的权重
+    redis.call("zrem", likedKey, userId)
+    count = redis.call("hincrby", countKey, blogId, -1)
+    addTrending(tonumber(likeTime), -1)
+    if (migrated) then
+        redis.call("setbit", bitsKey, bitOffset, 0)
+        redis.call("zrem", recentKey, userId)
+    end
+else
+    -- 没有点过赞，点赞
+    redis.call("zadd", likedKey, now, userId)
+    count = redis.call("hincrby", countKey, blogId, 1)
+    addTrending(tonumber(now), 1)
+    if (migrated) then
+        redis.call("setbit", bitsKey, bitOffset, 1)
+        redis.call("zadd", recentKey, now, userId)
+        redis.call("zremrangebyrank", recentKey, 0, -recentMaxSize - 1)
+    end
+end
+
+-- 标记点赞数需要写回数据库
+redis.call("sadd", dirtyKey, blogId)
+
+-- 更新热门排行榜
+redis.call("zadd", hotKey, count, blogId)
+
+return count
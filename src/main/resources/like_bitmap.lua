@@ -0,0 +1,96 @@
+-- 位图布局的点赞、取消点赞，同时维护Redis中的点赞数，返回最新的点赞数
+-- 是否点赞记录在按用户id分段的位图中，只有最近点赞的用户保存在有上限的zset中
+
+-- 用户id所在分段的点赞位图key
+local bitsKey = KEYS[1]
+
+-- 最近点赞用户的zset key
+local recentKey = KEYS[2]
+
+-- 点赞数hash key，field为博客id
+local countKey = KEYS[3]
+
+-- 点赞数有变化、等待写回数据库的博客id集合
+local dirtyKey = KEYS[4]
+
+-- 热门博客排行榜
+local hotKey = KEYS[5]
+
+-- 热度（随时间衰减）排行榜
+local trendingKey = KEYS[6]
+
+-- 博客id
+local blogId = ARGV[1]
+
+-- 用户id
+local userId = ARGV[2]
+
+-- 点赞时间
+local now = ARGV[3]
+
+-- 热度分数的初始时间戳T0、衰减时间常数τ（毫秒），点赞权重的对数ln(w)
+local trendingBegin = tonumber(ARGV[4])
+local trendingTau = tonumber(ARGV[5])
+local likeLogWeight = tonumber(ARGV[6])
+
+-- 用户在位图分段中的偏移量
+local bitOffset = ARGV[7]
+
+-- 最近点赞用户最多保留的数量
+local recentMaxSize = tonumber(ARGV[8])
+
+-- 数据库中的点赞数，位图无法统计点赞数，第一次使用Redis计数时用它初始化
+local initCount = ARGV[9]
+
+if (redis.call("hexists", countKey, blogId) == 0) then
+    redis.call("hset", countKey, blogId, initCount)
+end
+
+-- 热度分数加上或减去一个点赞的权重，逻辑和trending.lua相同
+local function addTrending(likeTime, sign)
+    local logWeight = likeLogWeight + (likeTime - trendingBegin) / trendingTau
+    local old = tonumber(redis.call("zscore", trendingKey, blogId))
+    if (sign > 0) then
+        if (not old) then
+            redis.call("zadd", trendingKey, logWeight, blogId)
+        else
+            local hi = math.max(old, logWeight)
+            local lo = math.min(old, logWeight)
+            redis.call("zadd", trendingKey, hi + math.log(1 + math.exp(lo - hi)), blogId)
+        end
+    elseif (old) then
+        if (logWeight >= old - 1e-9) then
+            redis.call("zrem", trendingKey, blogId)
+        else
+            redis.call("zadd", trendingKey, old + math.log(1 - math.exp(logWeight - old)), blogId)
+        end
+    end
+end
+
+local count
+if (redis.call("getbit", bitsKey, bitOffset) == 1) then
+    -- 已经点过赞，取消点赞
+    redis.call("setbit", bitsKey, bitOffset, 0)
+    count = redis.call("hincrby", countKey, blogId, -1)
+    -- 只有最近点赞的用户知道点赞时间，更早的点赞不再从热度中减去
+    local likeTime = redis.call("zscore", recentKey, userId)
+    if (likeTime) then
+        redis.call("zrem", recentKey, userId)
+        addTrending(tonumber(likeTime), -1)
+    end
+else
+    -- 没有点过赞，点赞
+    redis.call("setbit", bitsKey, bitOffset, 1)
+    count = redis.call("hincrby", countKey, blogId, 1)
+    redis.call("zadd", recentKey, now, userId)
+    redis.call("zremrangebyrank", recentKey, 0, -recentMaxSize - 1)
+    addTrending(tonumber(now), 1)
+end
+
+-- 标记点赞数需要写回数据库
+redis.call("sadd", dirtyKey, blogId)
+
+-- 更新热门排行榜
+redis.call("zadd", hotKey, count, blogId)
+
+return count
@@ -0,0 +1,27 @@
+-- 把一批点赞用户从zset布局复制到位图布局，只复制执行时仍然在zset中的用户
+-- 迁移期间的点赞、取消点赞已经由like.lua同时写入位图，这里不能把已经取消点赞的用户重新写回位图
+
+-- 点赞用户的zset key
+local likedKey = KEYS[1]
+
+-- 最近点赞用户的zset key
+local recentKey = KEYS[2]
+
+-- 最近点赞用户最多保留的数量
+local recentMaxSize = tonumber(ARGV[1])
+
+-- KEYS[3]开始是每个用户所在分段的位图key，ARGV[2]开始依次是用户id、用户在分段中的偏移量
+for i = 3, #KEYS do
+    local userId = ARGV[(i - 3) * 2 + 2]
+    local bitOffset = ARGV[(i - 3) * 2 + 3]
+    local likeTime = redis.call("zscore", likedKey, userId)
+    if (likeTime) then
+        redis.call("setbit", KEYS[i], bitOffset, 1)
+        redis.call("zadd", recentKey, likeTime, userId)
+    end
+end
+
+-- 只保留点赞时间最晚的用户
+redis.call("zremrangebyrank", recentKey, 0, -recentMaxSize - 1)
+
+return 0
@@ -6,25 +6,54 @@ local voucherId = ARGV[1]
 -- 用户id
 local userId = ARGV[2]
 
+-- 订单id
+local orderId = ARGV[3]
+
+-- 已下单用户的存储方式：set 用户id的集合；bitmap 以用户id为偏移量的位图
+local layout = ARGV[4]
+
 -- 库存key
 local stockKey = "seckill:stock:" .. voucherId
 
 -- 订单key
 local orderKey = "seckill:order" .. voucherId
+if (layout == "bitmap") then
+    orderKey = "seckill:order:bits:" .. voucherId
+end
+
+-- 订单消息队列key
+local streamKey = "stream.orders"
+
+-- 库存不存在，优惠券不存在或者还没有创建完成
+local stock = tonumber(redis.call("get", stockKey))
+if (stock == nil) then
+    return 3
+end
 
 -- 判断库存是否充足
-if (tonumber(redis.call("get", stockKey)) <= 0) then
+if (stock <= 0) then
     return 1
 end
 
 -- 判断用户是否已经下过单了
-if (redis.call("sismember", orderKey, userId) == 1) then
+if (layout == "bitmap") then
+    if (redis.call("getbit", orderKey, userId) == 1) then
+        return 2
+    end
+elseif (redis.call("sismember", orderKey, userId) == 1) then
     return 2
 end
 
 -- 库存充足，且用户之前没有下过单
 redis.call("incrby", stockKey, -1)
 
-redis.call("sadd", orderKey, userId)
+if (layout == "bitmap") then
+    redis.call("setbit", orderKey, userId, 1)
+else
+    redis.call("sadd", orderKey, userId)
+end
+
+-- 发送订单消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId)
 
 return 0
@@ -0,0 +1,52 @@
+-- 分段库存的异步秒杀实现，每次只操作一个库存分段
+
+-- 分段库存key
+local stockKey = KEYS[1]
+
+-- 分段订单key，set布局为用户id的集合，bitmap布局为以用户id为偏移量的位图
+local orderKey = KEYS[2]
+
+-- 分段订单消息队列key，三个key使用同一个hash tag，集群模式下在同一个slot
+local streamKey = KEYS[3]
+
+-- 优惠券id
+local voucherId = ARGV[1]
+
+-- 用户id
+local userId = ARGV[2]
+
+-- 订单id
+local orderId = ARGV[3]
+
+-- 已下单用户的存储方式：set 或 bitmap
+local layout = ARGV[4]
+
+-- 先判断用户是否已经在这个分段下过单
+-- 用户总是按固定顺序尝试各个分段，而库存只减不增，用户下单分段之前的分段一定已经售罄，
+-- 所以重复下单时一定会先走到下过单的分段，在这里被拦截
+if (layout == "bitmap") then
+    if (redis.call("getbit", orderKey, userId) == 1) then
+        return 2
+    end
+elseif (redis.call("sismember", orderKey, userId) == 1) then
+    return 2
+end
+
+-- 判断这个分段的库存是否充足，不足时由调用方尝试下一个分段
+if ((tonumber(redis.call("get", stockKey)) or 0) <= 0) then
+    return 1
+end
+
+-- 库存充足，且用户之前没有下过单
+redis.call("incrby", stockKey, -1)
+
+if (layout == "bitmap") then
+    redis.call("setbit", orderKey, userId, 1)
+else
+    redis.call("sadd", orderKey, userId)
+end
+
+-- 发送订单消息到队列中
+redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId)
+
+return 0
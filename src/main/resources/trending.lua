@@ -0,0 +1,42 @@
+-- 给博客的热度分数加上或减去一个权重
+-- 热度分数 score = ln(Σ w * e^((t - T0) / τ))，每个点赞、评论的权重随时间指数增长，
+-- 相当于所有旧的权重按时间指数衰减，排序结果一样，所以不需要定时重新计算所有博客的分数
+-- 在对数空间中累加，避免指数溢出
+
+-- 热度排行榜key
+local trendingKey = KEYS[1]
+
+-- 博客id
+local blogId = ARGV[1]
+
+-- 权重的对数 ln(w) + (t - T0) / τ
+local logWeight = tonumber(ARGV[2])
+
+-- 1：加上权重，-1：减去权重
+local sign = tonumber(ARGV[3])
+
+local old = tonumber(redis.call("zscore", trendingKey, blogId))
+
+if (sign > 0) then
+    if (not old) then
+        redis.call("zadd", trendingKey, logWeight, blogId)
+    else
+        -- ln(e^a + e^b) = max + ln(1 + e^(min - max))
+        local hi = math.max(old, logWeight)
+        local lo = math.min(old, logWeight)
+        redis.call("zadd", trendingKey, hi + math.log(1 + math.exp(lo - hi)), blogId)
+    end
+    return 1
+end
+
+if (not old) then
+    return 0
+end
+if (logWeight >= old - 1e-9) then
+    -- 减去之后没有热度了
+    redis.call("zrem", trendingKey, blogId)
+    return 0
+end
+-- ln(e^a - e^b) = a + ln(1 - e^(b - a))
+redis.call("zadd", trendingKey, old + math.log(1 - math.exp(logWeight - old)), blogId)
+return 1
@@ -0,0 +1,7 @@
+-- 续约worker id，只有租约还属于自己时才续期
+
+-- KEYS[1] worker id的租约key  ARGV[1] 节点标识  ARGV[2] 租约时长（秒）
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,64 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.AnalyticsClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisLayoutMigrator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+
+/**
+ * HyperLogLog UV统计的误差和内存，使用一个不存在的店铺id，需要连接真实的Redis
+ */
+@SpringBootTest
+public class AnalyticsTest {
+
+    private static final long SHOP_ID = 900_000_000L;
+    private static final int VISITORS = 100_000;
+
+    @Resource
+    private AnalyticsClient analyticsClient;
+    @Resource
+    private RedisLayoutMigrator redisLayoutMigrator;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @AfterEach
+    public void clean() {
+        stringRedisTemplate.delete(redisLayoutMigrator.scanKeys(
+                RedisConstants.uvKey(AnalyticsClient.shopScope(SHOP_ID), "*")));
+    }
+
+    @Test
+    public void shopUv() {
+        String scope = AnalyticsClient.shopScope(SHOP_ID);
+        // 每个访客访问两次，重复访问不计入UV
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < VISITORS; i++) {
+                analyticsClient.record(scope, String.valueOf(i));
+                if (i % 10_000 == 0) {
+                    analyticsClient.flush();
+                }
+            }
+            analyticsClient.flush();
+        }
+
+        LocalDate today = LocalDate.now();
+        long count = analyticsClient.count(scope, today, today);
+        System.out.println("UV : " + count + ", 实际 : " + VISITORS);
+        Assertions.assertTrue(Math.abs(count - VISITORS) < VISITORS * 0.02);
+
+        // 包含今天的多天统计，昨天没有数据，结果和今天相同
+        Assertions.assertEquals(count, analyticsClient.count(scope, today.minusDays(1), today));
+
+        String key = RedisConstants.uvKey(scope, today.format(DateTimeFormatter.ofPattern("yyyyMMdd")));
+        System.out.println("HLL内存 : " + redisLayoutMigrator.memoryUsage(Collections.singletonList(key)) + " bytes");
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.test;
+
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.User;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 热门博客一页数据的耗时对比：逐条查询作者和点赞 vs 批量查询，需要连接真实的MySQL和Redis
+ */
+@SpringBootTest
+public class BlogListBenchmarkTest {
+
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    public void login() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    public void logout() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    public void compareHotBlogPage() {
+        for (int i = 0; i < WARMUP; i++) {
+            queryHotBlogOneByOne();
+            blogService.queryHotBlog(1);
+        }
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            queryHotBlogOneByOne();
+        }
+        long before = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            blogService.queryHotBlog(1);
+        }
+        long after = System.nanoTime() - begin;
+
+        System.out.println("逐条查询 : " + before / ITERATIONS / 1000 + " us/page");
+        System.out.println("批量查询 : " + after / ITERATIONS / 1000 + " us/page");
+    }
+
+    /**
+     * 优化之前的实现：每个blog单独查询作者和点赞
+     */
+    private List<Blog> queryHotBlogOneByOne() {
+        List<Blog> records = blogService.query()
+                .orderByDesc("liked")
+                .page(new Page<>(1, SystemConstants.MAX_PAGE_SIZE))
+                .getRecords();
+        for (Blog blog : records) {
+            User user = userService.getById(blog.getUserId());
+            blog.setIcon(user.getIcon());
+            blog.setName(user.getNickName());
+            Double score = stringRedisTemplate.opsForZSet().score(RedisConstants.BLOG_LIKED_KEY + blog.getId(), UserHolder.getUser().getId() + "");
+            blog.setIsLike(score != null);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,61 @@
+package com.hmdp.test;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.EnrichExecutor;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 补全执行器：登录用户传递到执行线程，慢查询超时降级，并发执行的总耗时是最慢的一项
+ */
+@SpringBootTest
+public class EnrichExecutorTest {
+
+    @Resource
+    private EnrichExecutor enrichExecutor;
+
+    @AfterEach
+    public void logout() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    public void propagateUser() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+        Future<Long> future = enrichExecutor.supply(() -> UserHolder.getUser().getId());
+        Assertions.assertEquals(1L, enrichExecutor.join(future, enrichExecutor.deadline(), "用户", -1L));
+    }
+
+    @Test
+    public void degradeSlowStage() {
+        long begin = System.nanoTime();
+        long deadline = enrichExecutor.deadline();
+        Future<String> fast = enrichExecutor.supply(() -> sleep(100, "fast"));
+        Future<String> slow = enrichExecutor.supply(() -> sleep(2000, "slow"));
+        Assertions.assertEquals("fast", enrichExecutor.join(fast, deadline, "fast", "fallback"));
+        Assertions.assertEquals("fallback", enrichExecutor.join(slow, deadline, "slow", "fallback"));
+        // 超时的查询被取消，执行线程被中断后回到线程池
+        Assertions.assertTrue(slow.isCancelled());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        System.out.println("两项补全耗时 : " + millis + " ms");
+        Assertions.assertTrue(millis < 1000);
+    }
+
+    private static String sleep(long millis, String result) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.FeedClient;
+import com.hmdp.utils.RedisConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 推拉结合feed流的耗时对比，使用合成的关注关系，只访问Redis，需要连接真实的Redis
+ * 合成的关注关系：1个大V有BIG_FANS个粉丝，NORMAL_AUTHORS个普通博主各有NORMAL_FANS个粉丝，粉丝id从同一个范围中随机选取
+ */
+@SpringBootTest
+public class FeedBenchmarkTest {
+
+    private static final long FAN_ID_BASE = 900_000_000L;
+    private static final int BIG_FANS = 50_000;
+    private static final int NORMAL_AUTHORS = 20;
+    private static final int NORMAL_FANS = 500;
+    private static final long BIG_AUTHOR_ID = FAN_ID_BASE - 1;
+    private static final int PAGE_SIZE = 10;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private FeedClient feedClient;
+
+    private final List<String> keys = new ArrayList<>();
+
+    @AfterEach
+    public void clean() {
+        for (int i = 0; i < keys.size(); i += 1000) {
+            stringRedisTemplate.delete(keys.subList(i, Math.min(keys.size(), i + 1000)));
+        }
+        keys.clear();
+    }
+
+    /**
+     * 大V发布一篇博客：逐个ZADD推送 vs 分批pipeline推送 vs 只写发件箱
+     */
+    @Test
+    public void compareBigAuthorPublish() {
+        List<Long> fans = new ArrayList<>(BIG_FANS);
+        for (int i = 0; i < BIG_FANS; i++) {
+            fans.add(FAN_ID_BASE + i);
+            keys.add(RedisConstants.FEED_KEY + (FAN_ID_BASE + i));
+        }
+        keys.add(RedisConstants.FEED_OUTBOX_KEY + BIG_AUTHOR_ID);
+
+        long begin = System.nanoTime();
+        long now = System.currentTimeMillis();
+        for (Long fan : fans) {
+            stringRedisTemplate.opsForZSet().add(RedisConstants.FEED_KEY + fan, "1", now);
+        }
+        long oneByOne = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        int batchSize = feedClient.getFanOutBatchSize();
+        for (int i = 0; i < fans.size(); i += batchSize) {
+            feedClient.pushToInboxes(2L, now, fans.subList(i, Math.min(fans.size(), i + batchSize)));
+        }
+        long pipelined = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        feedClient.pushToOutbox(BIG_AUTHOR_ID, 3L, now);
+        long outbox = System.nanoTime() - begin;
+        stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_BIG_AUTHOR_KEY, String.valueOf(BIG_AUTHOR_ID));
+
+        System.out.println(BIG_FANS + "个粉丝，逐个推送   : " + oneByOne / 1_000_000 + " ms");
+        System.out.println(BIG_FANS + "个粉丝，pipeline推送 : " + pipelined / 1_000_000 + " ms");
+        System.out.println("只写发件箱           : " + outbox / 1000 + " us");
+    }
+
+    /**
+     * 读取一页feed：只读收件箱 vs 收件箱和多个大V发件箱归并
+     */
+    @Test
+    public void compareReadFeed() {
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        long blogId = 1;
+        // 过期的收件箱不会被推送，先创建空的收件箱
+        for (int i = 0; i < BIG_FANS / 10; i++) {
+            feedClient.rebuildInbox(FAN_ID_BASE + i, Collections.emptyMap());
+        }
+        // 普通博主推送到随机粉丝的收件箱
+        for (int author = 0; author < NORMAL_AUTHORS; author++) {
+            List<Long> fans = new ArrayList<>(NORMAL_FANS);
+            for (int i = 0; i < NORMAL_FANS; i++) {
+                fans.add(FAN_ID_BASE + random.nextInt(BIG_FANS / 10));
+            }
+            for (int post = 0; post < 5; post++) {
+                feedClient.pushToInboxes(blogId++, now - random.nextInt(86_400_000), fans);
+            }
+        }
+        for (int i = 0; i < BIG_FANS / 10; i++) {
+            keys.add(RedisConstants.FEED_KEY + (FAN_ID_BASE + i));
+        }
+        // 每个大V的发件箱有100篇博客
+        List<String> outboxKeys = new ArrayList<>();
+        for (int author = 0; author < 5; author++) {
+            String key = RedisConstants.FEED_OUTBOX_KEY + (BIG_AUTHOR_ID - author);
+            for (int post = 0; post < 100; post++) {
+                stringRedisTemplate.opsForZSet().add(key, String.valueOf(blogId++), now - random.nextInt(86_400_000));
+            }
+            outboxKeys.add(key);
+            keys.add(key);
+        }
+
+        String inbox = RedisConstants.FEED_KEY + FAN_ID_BASE;
+        int iterations = 500;
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            feedClient.readFeed(inbox, Collections.emptyList(), now, 0, PAGE_SIZE);
+        }
+        long inboxOnly = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        List<ZSetOperations.TypedTuple<String>> page = null;
+        for (int i = 0; i < iterations; i++) {
+            page = feedClient.readFeed(inbox, outboxKeys, now, 0, PAGE_SIZE);
+        }
+        long merged = System.nanoTime() - begin;
+
+        // 归并结果按时间戳倒序
+        for (int i = 1; i < page.size(); i++) {
+            if (page.get(i).getScore() > page.get(i - 1).getScore()) {
+                throw new AssertionError("归并结果没有按时间戳倒序");
+            }
+        }
+        System.out.println("只读收件箱         : " + inboxOnly / iterations / 1000 + " us/page");
+        System.out.println("收件箱 + 5个发件箱 : " + merged / iterations / 1000 + " us/page");
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.RedisIDWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+
+/**
+ * 对比 INCR 方式和雪花算法生成ID的耗时，需要连接真实的Redis
+ */
+@SpringBootTest
+public class IdWorkerBenchmarkTest {
+
+    private static final int WARMUP = 1000;
+    private static final int ITERATIONS = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisIDWorker redisIDWorker;
+
+    @Test
+    public void compareIncrAndSnowflake() {
+        SnowflakeIdWorker snowflakeIdWorker = new SnowflakeIdWorker(stringRedisTemplate);
+        snowflakeIdWorker.start();
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                redisIDWorker.getId("bench");
+                snowflakeIdWorker.nextId();
+            }
+
+            long begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                redisIDWorker.getId("bench");
+            }
+            long incrCost = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                snowflakeIdWorker.nextId();
+            }
+            long snowflakeCost = System.nanoTime() - begin;
+
+            System.out.println("incr      : " + incrCost / ITERATIONS + " ns/op");
+            System.out.println("snowflake : " + snowflakeCost / ITERATIONS + " ns/op");
+
+            // 雪花ID的模式位保证它总是大于INCR模式的ID
+            Assertions.assertTrue(snowflakeIdWorker.nextId() > redisIDWorker.getId("bench"));
+        } finally {
+            snowflakeIdWorker.stop();
+        }
+    }
+}
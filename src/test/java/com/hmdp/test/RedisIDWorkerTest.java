@@ -0,0 +1,88 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.RedisIDWorker;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * lease模式的ID生成测试，使用本地计数器模拟Redis的INCRBY
+ */
+public class RedisIDWorkerTest {
+
+    private static final int THREADS = 16;
+    private static final int IDS_PER_THREAD = 5000;
+
+    private RedisIDWorker redisIDWorker;
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.increment(anyString(), anyLong())).thenAnswer(invocation ->
+                counters.computeIfAbsent(invocation.getArgument(0), key -> new AtomicLong())
+                        .addAndGet(invocation.getArgument(1)));
+
+        redisIDWorker = new RedisIDWorker();
+        ReflectionTestUtils.setField(redisIDWorker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(redisIDWorker, "mode", "lease");
+        ReflectionTestUtils.setField(redisIDWorker, "leaseStep", 100);
+    }
+
+    @Test
+    public void testLeaseIdUniqueAndMonotonic() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(() -> {
+                latch.await();
+                List<Long> ids = new ArrayList<>(IDS_PER_THREAD);
+                for (int j = 0; j < IDS_PER_THREAD; j++) {
+                    ids.add(redisIDWorker.getId("order"));
+                }
+                return ids;
+            }));
+        }
+        latch.countDown();
+
+        Set<Long> all = ConcurrentHashMap.newKeySet();
+        for (Future<List<Long>> future : futures) {
+            List<Long> ids = future.get(30, TimeUnit.SECONDS);
+            // 同一个线程拿到的ID严格递增
+            for (int i = 1; i < ids.size(); i++) {
+                assertTrue(ids.get(i) > ids.get(i - 1), "ID不是递增的");
+            }
+            all.addAll(ids);
+        }
+        executor.shutdown();
+
+        // 所有ID都不重复
+        assertEquals(THREADS * IDS_PER_THREAD, all.size());
+    }
+}
@@ -0,0 +1,156 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisLayoutMigrator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 点赞记录、已下单用户两种布局的内存对比，使用合成的数据，需要连接真实的Redis
+ * 合成数据：BLOGS篇博客，第i篇博客的点赞数按幂律分布，点赞用户id从USER_RANGE个用户中随机选取
+ */
+@SpringBootTest
+public class RedisLayoutTest {
+
+    private static final long BLOG_ID_BASE = 900_000_000L;
+    private static final int BLOGS = 200;
+    private static final int MAX_LIKES = 20_000;
+    private static final long USER_RANGE = 1_000_000L;
+    private static final int RECENT_MAX_SIZE = 100;
+    private static final long VOUCHER_ID = 900_000_000L;
+    private static final int BUYERS = 100_000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisLayoutMigrator redisLayoutMigrator;
+
+    private final List<String> keys = new ArrayList<>();
+
+    @AfterEach
+    public void clean() {
+        for (int i = 0; i < keys.size(); i += 1000) {
+            stringRedisTemplate.delete(keys.subList(i, Math.min(keys.size(), i + 1000)));
+        }
+        keys.clear();
+    }
+
+    /**
+     * 每篇博客一个zset vs 分段位图 + 最近点赞用户zset
+     */
+    @Test
+    public void compareBlogLikedLayout() {
+        Random random = new Random(1);
+        List<String> zsetKeys = new ArrayList<>();
+        List<Set<Long>> likedUsers = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < BLOGS; i++) {
+            Long blogId = BLOG_ID_BASE + i;
+            int likes = Math.max(1, MAX_LIKES / (i + 1));
+            Set<Long> users = new HashSet<>();
+            while (users.size() < likes) {
+                users.add(1 + (long) (random.nextDouble() * USER_RANGE));
+            }
+            String key = RedisConstants.BLOG_LIKED_KEY + blogId;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                long time = now - users.size();
+                for (Long userId : users) {
+                    stringRedisConnection.zAdd(key, time++, userId.toString());
+                }
+                return null;
+            });
+            zsetKeys.add(key);
+            likedUsers.add(users);
+        }
+        keys.addAll(zsetKeys);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < BLOGS; i++) {
+            redisLayoutMigrator.migrateBlogLiked(BLOG_ID_BASE + i, RECENT_MAX_SIZE);
+        }
+        long migrateMillis = (System.nanoTime() - begin) / 1_000_000;
+
+        List<String> bitmapKeys = new ArrayList<>();
+        for (int i = 0; i < BLOGS; i++) {
+            bitmapKeys.addAll(redisLayoutMigrator.scanKeys(RedisConstants.BLOG_LIKED_BITS_KEY + (BLOG_ID_BASE + i) + ":*"));
+            bitmapKeys.add(RedisConstants.BLOG_LIKED_RECENT_KEY + (BLOG_ID_BASE + i));
+        }
+        keys.addAll(bitmapKeys);
+
+        // 抽查迁移结果：点赞过的用户位图为1，最近点赞用户zset有上限
+        for (int i = 0; i < BLOGS; i += 50) {
+            Long blogId = BLOG_ID_BASE + i;
+            for (Long userId : likedUsers.get(i)) {
+                Assertions.assertTrue(stringRedisTemplate.opsForValue().getBit(
+                        RedisConstants.blogLikedBitsKey(blogId, userId), RedisConstants.blogLikedBitOffset(userId)));
+            }
+            Long recent = stringRedisTemplate.opsForZSet().zCard(RedisConstants.BLOG_LIKED_RECENT_KEY + blogId);
+            Assertions.assertEquals(Math.min(RECENT_MAX_SIZE, likedUsers.get(i).size()), recent.intValue());
+        }
+        // 迁移之后取消点赞的用户，重新迁移后不再留在位图中
+        Long firstBlogId = BLOG_ID_BASE;
+        Long unliked = likedUsers.get(0).iterator().next();
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.BLOG_LIKED_KEY + firstBlogId, unliked.toString());
+        redisLayoutMigrator.migrateBlogLiked(firstBlogId, RECENT_MAX_SIZE);
+        Assertions.assertFalse(stringRedisTemplate.opsForValue().getBit(
+                RedisConstants.blogLikedBitsKey(firstBlogId, unliked), RedisConstants.blogLikedBitOffset(unliked)));
+        keys.add(RedisConstants.BLOG_LIKED_MIGRATED_KEY);
+        for (int i = 0; i < BLOGS; i++) {
+            stringRedisTemplate.opsForHash().delete(RedisConstants.BLOG_LIKED_COUNT_KEY, String.valueOf(BLOG_ID_BASE + i));
+        }
+
+        long zsetBytes = redisLayoutMigrator.memoryUsage(zsetKeys);
+        long bitmapBytes = redisLayoutMigrator.memoryUsage(bitmapKeys);
+        System.out.println("点赞记录 zset: " + zsetBytes / 1024 + "KB, " + zsetKeys.size() + "个key");
+        System.out.println("点赞记录 位图+最近点赞: " + bitmapBytes / 1024 + "KB, " + bitmapKeys.size() + "个key, 迁移耗时" + migrateMillis + "ms");
+    }
+
+    /**
+     * 已下单用户set vs 以用户id为偏移量的位图
+     */
+    @Test
+    public void compareSeckillOrderLayout() {
+        Random random = new Random(1);
+        String setKey = RedisConstants.SECKILL_ORDER_KEY + VOUCHER_ID;
+        String bitsKey = RedisConstants.SECKILL_ORDER_BITS_KEY + VOUCHER_ID;
+        keys.add(setKey);
+        keys.add(bitsKey);
+        Set<Long> buyers = new HashSet<>();
+        while (buyers.size() < BUYERS) {
+            buyers.add(1 + (long) (random.nextDouble() * USER_RANGE));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (Long userId : buyers) {
+                stringRedisConnection.sAdd(setKey, userId.toString());
+            }
+            return null;
+        });
+
+        redisLayoutMigrator.migrateSet(setKey, bitsKey);
+
+        for (Long userId : buyers) {
+            if (userId % 100 == 0) {
+                Assertions.assertTrue(stringRedisTemplate.opsForValue().getBit(bitsKey, userId));
+            }
+        }
+        long setBytes = redisLayoutMigrator.memoryUsage(Collections.singletonList(setKey));
+        long bitmapBytes = redisLayoutMigrator.memoryUsage(Collections.singletonList(bitsKey));
+        System.out.println("已下单用户 set: " + setBytes / 1024 + "KB");
+        System.out.println("已下单用户 位图: " + bitmapBytes / 1024 + "KB");
+    }
+}
@@ -0,0 +1,81 @@
+package com.hmdp.test;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SignCalendar;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.ISignService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 跨月的连续签到和签到日历，使用一个不存在的用户id，需要连接真实的Redis
+ */
+@SpringBootTest
+public class SignTest {
+
+    private static final long USER_ID = 900_000_000L;
+    private static final int STREAK = 75;
+
+    @Resource
+    private ISignService signService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Set<String> keys = new HashSet<>();
+
+    @BeforeEach
+    public void login() {
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    public void clean() {
+        UserHolder.removeUser();
+        stringRedisTemplate.delete(keys);
+        keys.clear();
+    }
+
+    @Test
+    public void streakAcrossMonths() {
+        LocalDate today = LocalDate.now();
+        // 最近STREAK天连续签到，之前断签一天，再之前又签到了一天
+        for (int i = 0; i < STREAK; i++) {
+            setSign(today.minusDays(i));
+        }
+        setSign(today.minusDays(STREAK + 1));
+
+        Assertions.assertEquals(STREAK, signService.signCount().getData());
+
+        Result result = signService.signCalendar(today.format(DateTimeFormatter.ofPattern("yyyyMM")));
+        SignCalendar calendar = (SignCalendar) result.getData();
+        Assertions.assertEquals(today.getDayOfMonth(), calendar.getTotal().intValue());
+        Assertions.assertEquals(today.getDayOfMonth(), calendar.getDays().size());
+        Assertions.assertEquals(1, calendar.getDays().get(0).intValue());
+    }
+
+    @Test
+    public void noSignToday() {
+        setSign(LocalDate.now().minusDays(1));
+        Assertions.assertEquals(0, signService.signCount().getData());
+    }
+
+    private void setSign(LocalDate date) {
+        String key = RedisConstants.USER_SIGN_KEY + date.format(DateTimeFormatter.ofPattern("yyyy:MM:")) + USER_ID;
+        keys.add(key);
+        stringRedisTemplate.opsForValue().setBit(key, date.getDayOfMonth() - 1, true);
+    }
+}
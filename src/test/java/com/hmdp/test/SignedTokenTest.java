@@ -0,0 +1,59 @@
+package com.hmdp.test;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SignedTokenClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+
+/**
+ * 签名token的签发、校验、篡改和吊销，吊销需要连接真实的Redis
+ */
+@SpringBootTest(properties = {"token.mode=signed", "token.secret=signed-token-test-secret-0123456789abcdef"})
+public class SignedTokenTest {
+
+    @Resource
+    private SignedTokenClient signedTokenClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void roundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        user.setNickName("小鱼同学");
+        String token = signedTokenClient.issue(user);
+
+        SignedTokenClient.Claims claims = signedTokenClient.parse(token);
+        Assertions.assertNotNull(claims);
+        Assertions.assertEquals(user, claims.getUser());
+        Assertions.assertFalse(signedTokenClient.needRenew(claims));
+
+        // 续期的token和原token的tokenId相同
+        SignedTokenClient.Claims renewed = signedTokenClient.parse(signedTokenClient.renew(claims, user));
+        Assertions.assertEquals(claims.getTokenId(), renewed.getTokenId());
+
+        // 篡改载荷后签名校验失败
+        char[] chars = token.toCharArray();
+        chars[5] = chars[5] == 'A' ? 'B' : 'A';
+        Assertions.assertNull(signedTokenClient.parse(new String(chars)));
+    }
+
+    @Test
+    public void revoke() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        String token = signedTokenClient.issue(user);
+        SignedTokenClient.Claims claims = signedTokenClient.parse(token);
+        String renewed = signedTokenClient.renew(claims, user);
+
+        signedTokenClient.revoke(token);
+        Assertions.assertNull(signedTokenClient.parse(token));
+        Assertions.assertNull(signedTokenClient.parse(renewed));
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.LOGIN_REVOKED_KEY, claims.getTokenId().toString());
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp.test;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.TokenClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * token本地缓存：不经过TokenClient删除的token，也会通过CLIENT TRACKING的失效通知立即失效，需要连接Redis 6以上
+ */
+@SpringBootTest
+public class TokenClientTest {
+
+    @Resource
+    private TokenClient tokenClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    public void invalidateOnExternalDelete() throws InterruptedException {
+        String token = UUID.randomUUID().toString(true);
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        stringRedisTemplate.opsForHash().put(key, "id", "1");
+        stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        // 等待跟踪连接开启CLIENT TRACKING
+        Thread.sleep(500);
+
+        // 第一次读取后写入本地缓存
+        Assertions.assertEquals(1L, tokenClient.getUserId(token));
+        Assertions.assertEquals(1L, tokenClient.getUserId(token));
+
+        // 直接删除Redis中的token，不经过TokenClient
+        stringRedisTemplate.delete(key);
+        Thread.sleep(100);
+        Assertions.assertNull(tokenClient.getUserId(token));
+    }
+}
@@ -0,0 +1,94 @@
+package com.hmdp.test;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.User;
+import com.hmdp.utils.UserConverter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 手写的User、UserDTO、Redis hash转换：往返正确性，以及和hutool反射转换的耗时对比
+ */
+public class UserConverterTest {
+
+    private static final int WARMUP = 100_000;
+    private static final int ITERATIONS = 1_000_000;
+
+    @Test
+    public void roundTrip() {
+        User user = new User();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        user.setPhone("13686869696");
+
+        UserDTO userDTO = UserConverter.toDTO(user);
+        Assertions.assertEquals(BeanUtil.copyProperties(user, UserDTO.class), userDTO);
+        Assertions.assertEquals(userDTO, UserConverter.copy(userDTO));
+        Assertions.assertNotSame(userDTO, UserConverter.copy(userDTO));
+
+        // 经过Redis hash往返之后头像不能丢失
+        Map<String, String> hash = UserConverter.toHash(userDTO);
+        Assertions.assertEquals(user.getIcon(), hash.get(UserConverter.FIELD_ICON));
+        Assertions.assertEquals(userDTO, UserConverter.fromHash(new HashMap<Object, Object>(hash)));
+
+        // 为null的字段不写入hash，读取时仍为null
+        userDTO.setIcon(null);
+        hash = UserConverter.toHash(userDTO);
+        Assertions.assertFalse(hash.containsKey(UserConverter.FIELD_ICON));
+        Assertions.assertEquals(userDTO, UserConverter.fromHash(hash));
+
+        Assertions.assertNull(UserConverter.fromHash(new HashMap<>()));
+    }
+
+    @Test
+    public void compareWithBeanUtil() {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setId(1010L);
+        userDTO.setNickName("可可今天不吃肉");
+        userDTO.setIcon("/imgs/icons/kkjtbcr.jpg");
+        Map<String, Object> hash = BeanUtil.beanToMap(userDTO);
+
+        long blackhole = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            blackhole += BeanUtil.copyProperties(userDTO, UserDTO.class).getId();
+            blackhole += BeanUtil.fillBeanWithMap(hash, new UserDTO(), false).getId();
+            blackhole += UserConverter.copy(userDTO).getId();
+            blackhole += UserConverter.fromHash(hash).getId();
+        }
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += BeanUtil.copyProperties(userDTO, UserDTO.class).getId();
+        }
+        long beanUtilCopy = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += UserConverter.copy(userDTO).getId();
+        }
+        long converterCopy = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += BeanUtil.fillBeanWithMap(hash, new UserDTO(), false).getId();
+        }
+        long beanUtilFromHash = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += UserConverter.fromHash(hash).getId();
+        }
+        long converterFromHash = System.nanoTime() - begin;
+
+        System.out.println("BeanUtil.copyProperties  : " + beanUtilCopy / ITERATIONS + " ns/op");
+        System.out.println("UserConverter.copy       : " + converterCopy / ITERATIONS + " ns/op");
+        System.out.println("BeanUtil.fillBeanWithMap : " + beanUtilFromHash / ITERATIONS + " ns/op");
+        System.out.println("UserConverter.fromHash   : " + converterFromHash / ITERATIONS + " ns/op");
+        System.out.println(blackhole);
+    }
+}